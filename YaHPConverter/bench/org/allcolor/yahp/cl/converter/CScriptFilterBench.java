@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares CScriptFilterWriter with the removeScript method it replaced, on
+ * script heavy html of doubling size. The old method is quadratic, the
+ * filter should scale linearly.<br>
+ * Usage: CScriptFilterBench [maxBlocks] [rounds]
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CScriptFilterBench {
+	/**
+	 * Creates a new CScriptFilterBench object.
+	 */
+	private CScriptFilterBench() {
+	} // end CScriptFilterBench()
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            max number of script blocks (default 2048) and rounds per
+	 *            size (default 5)
+	 *
+	 * @throws IOException
+	 *             should not happen
+	 */
+	public static void main(final String[] args) throws IOException {
+		final int maxBlocks = (args.length > 0) ? Integer.parseInt(args[0])
+				: 2048;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		// warm up both paths
+		final String warm = CScriptFilterBench.html(256);
+		for (int i = 0; i < 20; i++) {
+			CScriptFilterBench.filter(warm);
+			CScriptFilterBench.removeScript(warm);
+		} // end for
+		System.out.println("blocks\tchars\told ms\tfilter ms");
+		for (int blocks = 256; blocks <= maxBlocks; blocks *= 2) {
+			final String html = CScriptFilterBench.html(blocks);
+			final String expected = CScriptFilterBench.removeScript(html);
+			if (!expected.equals(CScriptFilterBench.filter(html))) {
+				System.err.println("Output mismatch for " + blocks
+						+ " blocks");
+				System.exit(1);
+			} // end if
+			long oldTime = Long.MAX_VALUE;
+			long newTime = Long.MAX_VALUE;
+			for (int i = 0; i < rounds; i++) {
+				long start = System.nanoTime();
+				CScriptFilterBench.removeScript(html);
+				oldTime = Math.min(oldTime, System.nanoTime() - start);
+				start = System.nanoTime();
+				CScriptFilterBench.filter(html);
+				newTime = Math.min(newTime, System.nanoTime() - start);
+			} // end for
+			System.out.println(blocks + "\t" + html.length() + "\t"
+					+ (oldTime / 1000000.0) + "\t" + (newTime / 1000000.0));
+		} // end for
+	} // end main()
+
+	/**
+	 * Strips the scripts with CScriptFilterWriter
+	 *
+	 * @param html
+	 *            the html to filter
+	 *
+	 * @return the html without its scripts
+	 *
+	 * @throws IOException
+	 *             should not happen
+	 */
+	private static String filter(final String html) throws IOException {
+		final StringWriter out = new StringWriter(html.length());
+		final Writer w = new CScriptFilterWriter(out);
+		w.write(html);
+		w.close();
+		return out.toString();
+	} // end filter()
+
+	/**
+	 * Builds an html document with the given number of script blocks
+	 *
+	 * @param blocks
+	 *            number of script blocks
+	 *
+	 * @return the html
+	 */
+	private static String html(final int blocks) {
+		final StringBuffer buffer = new StringBuffer(blocks * 128);
+		buffer.append("<html><head><title>bench</title></head><body>");
+		for (int i = 0; i < blocks; i++) {
+			buffer.append("<p>paragraph ").append(i).append(" &lt;b&gt;</p>");
+			buffer.append("<script type=\"text/javascript\">var v").append(i)
+					.append(" = '<p>' + ").append(i).append(";</script>");
+		} // end for
+		buffer.append("</body></html>");
+		return buffer.toString();
+	} // end html()
+
+	/**
+	 * The string based removeScript method replaced by CScriptFilterWriter,
+	 * kept verbatim as the reference.
+	 *
+	 * @param a
+	 *            the html
+	 *
+	 * @return the html without its scripts
+	 */
+	private static String removeScript(String a) {
+		final List toRemove = new ArrayList();
+		final Pattern p = Pattern.compile("(<script\\s*)");
+		final Matcher m = p.matcher(a);
+		int start = 0;
+		while (m.find(start)) {
+			final int is = m.start();
+			int ie = m.start();
+			while (ie < a.length()) {
+				if (a.substring(ie).startsWith("</script>")) {
+					ie = ie + 9;
+					break;
+				} else {
+					ie++;
+				}
+			}
+			start = ie + 1;
+			toRemove.add(a.substring(is, ie));
+			if (start >= a.length()) {
+				break;
+			}
+		}
+		for (int i = 0; i < toRemove.size(); i++) {
+			final String rem = (String) toRemove.get(i);
+			final int index = a.indexOf(rem);
+			a = a.substring(0, index) + a.substring(index + rem.length());
+		}
+		return a;
+	} // end removeScript()
+} // end CScriptFilterBench
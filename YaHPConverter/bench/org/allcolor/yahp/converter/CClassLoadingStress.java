@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.converter;
+
+/**
+ * Resolves classes and resources through the YaHP classloader tree from
+ * many threads at once, in several rounds of new threads, so that the
+ * thread contexts are created and released concurrently. Exits with status
+ * 1 if a lookup gives a wrong result.<br>
+ * Usage: CClassLoadingStress [threads] [rounds] [lookups]
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CClassLoadingStress {
+	/** classes to resolve, the last one does not exist */
+	private static final String[] CLASSES = new String[] {
+			"com.lowagie.text.pdf.PdfReader",
+			"com.lowagie.text.pdf.PdfWriter",
+			"org.xhtmlrenderer.pdf.ITextRenderer",
+			"org.xhtmlrenderer.layout.BoxBuilder", "org.w3c.tidy.Tidy",
+			"org.apache.log4j.Logger", "org.jaxen.XPath",
+			"org.allcolor.yahp.cl.converter.CHtmlToPdfFlyingSaucerTransformer",
+			"does.not.Exist" };
+
+	/** resources to find, the last one does not exist */
+	private static final String[] RESOURCES = new String[] {
+			"org/apache/log4j/Logger.class",
+			"com/lowagie/text/pdf/PdfReader.class", "does/not/Exist.txt" };
+
+	/** number of wrong lookups */
+	private static int errors = 0;
+
+	/**
+	 * Creates a new CClassLoadingStress object.
+	 */
+	private CClassLoadingStress() {
+	} // end CClassLoadingStress()
+
+	/**
+	 * Runs the stress test
+	 *
+	 * @param args
+	 *            threads per round (default 32), rounds (default 5) and
+	 *            lookups per thread (default 200)
+	 *
+	 * @throws Exception
+	 *             if the converter cannot be created
+	 */
+	public static void main(final String[] args) throws Exception {
+		final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		final int lookups = (args.length > 2) ? Integer.parseInt(args[2])
+				: 200;
+		new CYaHPConverter(true);
+		final ClassLoader loader = CClassLoader.getLoader("/main");
+		for (int r = 0; r < rounds; r++) {
+			final Thread[] running = new Thread[threads];
+			final long start = System.currentTimeMillis();
+			for (int i = 0; i < threads; i++) {
+				final int offset = i;
+				running[i] = new Thread("stress-" + r + "-" + i) {
+					public void run() {
+						for (int j = 0; j < lookups; j++) {
+							CClassLoadingStress.lookup(loader, offset + j);
+						} // end for
+					} // end run()
+				};
+				running[i].start();
+			} // end for
+			for (int i = 0; i < threads; i++) {
+				running[i].join();
+			} // end for
+			System.out.println("round " + r + ": " + threads + " threads, "
+					+ (System.currentTimeMillis() - start) + " ms, errors="
+					+ CClassLoadingStress.getErrors());
+		} // end for
+		if (CClassLoadingStress.getErrors() > 0) {
+			System.exit(1);
+		} // end if
+	} // end main()
+
+	/**
+	 * Count a wrong lookup
+	 */
+	private static synchronized void error() {
+		CClassLoadingStress.errors++;
+	} // end error()
+
+	/**
+	 * Return the number of wrong lookups
+	 *
+	 * @return the number of wrong lookups
+	 */
+	private static synchronized int getErrors() {
+		return CClassLoadingStress.errors;
+	} // end getErrors()
+
+	/**
+	 * Resolve the class and the resource at the given index
+	 *
+	 * @param loader
+	 *            the loader to use
+	 * @param index
+	 *            index of the class and resource to resolve
+	 */
+	private static void lookup(final ClassLoader loader, final int index) {
+		final String name = CClassLoadingStress.CLASSES[index
+				% CClassLoadingStress.CLASSES.length];
+		final boolean exists = !name.startsWith("does.");
+		try {
+			Class.forName(name, false, loader);
+			if (!exists) {
+				CClassLoadingStress.error();
+			} // end if
+		} // end try
+		catch (final ClassNotFoundException e) {
+			if (exists) {
+				CClassLoadingStress.error();
+			} // end if
+		} // end catch
+		catch (final Throwable e) {
+			e.printStackTrace();
+			CClassLoadingStress.error();
+		} // end catch
+		final String resource = CClassLoadingStress.RESOURCES[index
+				% CClassLoadingStress.RESOURCES.length];
+		if ((loader.getResource(resource) == null) == !resource
+				.startsWith("does/")) {
+			CClassLoadingStress.error();
+		} // end if
+	} // end lookup()
+} // end CClassLoadingStress
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.converter;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Compares the context classloader set up of a conversion: a new
+ * URLClassLoader per conversion, as before, against the loader cached by
+ * CYaHPConverter.getContextClassLoader().<br>
+ * Usage: CContextLoaderBench [calls] [rounds]
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CContextLoaderBench {
+	/**
+	 * Creates a new CContextLoaderBench object.
+	 */
+	private CContextLoaderBench() {
+	} // end CContextLoaderBench()
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            calls per round (default 200000) and rounds (default 5)
+	 *
+	 * @throws Exception
+	 *             if the converter cannot be created
+	 */
+	public static void main(final String[] args) throws Exception {
+		final int calls = (args.length > 0) ? Integer.parseInt(args[0])
+				: 200000;
+		final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		final CYaHPConverter converter = new CYaHPConverter(false);
+		final ClassLoader parent = CYaHPConverter.class.getClassLoader();
+		final Thread current = Thread.currentThread();
+		final ClassLoader saved = current.getContextClassLoader();
+		try {
+			System.out.println("round\tnew loader ns/call\tcached ns/call");
+			for (int r = 0; r < rounds; r++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < calls; i++) {
+					current.setContextClassLoader(new URLClassLoader(
+						new URL[0], parent));
+				} // end for
+				final long created = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < calls; i++) {
+					current.setContextClassLoader(converter
+						.getContextClassLoader());
+				} // end for
+				final long cached = System.nanoTime() - start;
+				System.out.println(r + "\t" + (created / calls) + "\t"
+						+ (cached / calls));
+			} // end for
+		} // end try
+		finally {
+			current.setContextClassLoader(saved);
+		} // end finally
+	} // end main()
+} // end CContextLoaderBench
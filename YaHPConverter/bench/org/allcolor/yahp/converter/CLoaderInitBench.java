@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.converter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * Measures the cold init of the YaHP classloader tree: each run is a new
+ * virtual machine which creates a converter and resolves the classes a
+ * conversion needs through the "/main" loader. The minimum and median of
+ * the runs are printed.<br>
+ * Usage: CLoaderInitBench [runs]
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CLoaderInitBench {
+	/** argument of the measured child virtual machines */
+	private static final String CHILD = "-child";
+
+	/** prefix of the line giving the child timings */
+	private static final String RESULT = "init-bench ";
+
+	/** classes resolved after the init */
+	private static final String[] CLASSES = new String[] {
+			"org.allcolor.yahp.cl.converter.CHtmlToPdfFlyingSaucerTransformer",
+			"org.xhtmlrenderer.pdf.ITextRenderer",
+			"org.xhtmlrenderer.layout.BoxBuilder",
+			"com.lowagie.text.pdf.PdfWriter", "org.w3c.tidy.Tidy",
+			"org.apache.log4j.Logger" };
+
+	/**
+	 * Creates a new CLoaderInitBench object.
+	 */
+	private CLoaderInitBench() {
+	} // end CLoaderInitBench()
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            number of runs (default 5)
+	 *
+	 * @throws Exception
+	 *             if a run fails
+	 */
+	public static void main(final String[] args) throws Exception {
+		if ((args.length > 0) && CLoaderInitBench.CHILD.equals(args[0])) {
+			CLoaderInitBench.child();
+			return;
+		} // end if
+		final int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		final long[] init = new long[runs];
+		final long[] load = new long[runs];
+		final String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		for (int i = 0; i < runs; i++) {
+			final Process process = new ProcessBuilder(new String[] { java,
+					"-cp", System.getProperty("java.class.path"),
+					CLoaderInitBench.class.getName(), CLoaderInitBench.CHILD })
+					.redirectErrorStream(true).start();
+			final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream()));
+			String result = null;
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(CLoaderInitBench.RESULT)) {
+					result = line.substring(CLoaderInitBench.RESULT.length());
+				} // end if
+			} // end while
+			reader.close();
+			if ((process.waitFor() != 0) || (result == null)) {
+				throw new IllegalStateException("Run " + i + " failed.");
+			} // end if
+			final int space = result.indexOf(' ');
+			init[i] = Long.parseLong(result.substring(0, space));
+			load[i] = Long.parseLong(result.substring(space + 1));
+			System.out.println("run " + i + ": init " + init[i]
+					+ " ms, classes " + load[i] + " ms");
+		} // end for
+		Arrays.sort(init);
+		Arrays.sort(load);
+		System.out.println("init ms: min " + init[0] + ", median "
+				+ init[runs / 2]);
+		System.out.println("classes ms: min " + load[0] + ", median "
+				+ load[runs / 2]);
+	} // end main()
+
+	/**
+	 * Measured run: create the converter, then resolve the classes
+	 *
+	 * @throws Exception
+	 *             if the init fails or a class is missing
+	 */
+	private static void child() throws Exception {
+		long start = System.currentTimeMillis();
+		new CYaHPConverter(true);
+		final long init = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		final ClassLoader loader = CClassLoader.getLoader("/main");
+		for (int i = 0; i < CLoaderInitBench.CLASSES.length; i++) {
+			Class.forName(CLoaderInitBench.CLASSES[i], true, loader);
+		} // end for
+		final long load = System.currentTimeMillis() - start;
+		System.out.println(CLoaderInitBench.RESULT + init + " " + load);
+	} // end child()
+} // end CLoaderInitBench
@@ -19,14 +19,16 @@
  */
 package org.allcolor.yahp.cl.converter;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
+import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -38,15 +40,24 @@ import org.allcolor.yahp.converter.IHtmlToPdfTransformer;
 import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CConvertException;
 import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CHeaderFooter;
 import org.allcolor.yahp.converter.IHtmlToPdfTransformer.PageSize;
+import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.pdf.PDFCreationListener;
 
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.ExceptionConverter;
 import com.lowagie.text.Meta;
-import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.BadPdfFormatException;
 import com.lowagie.text.pdf.PdfContentByte;
 import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfDictionary;
 import com.lowagie.text.pdf.PdfImportedPage;
+import com.lowagie.text.pdf.PdfIndirectReference;
+import com.lowagie.text.pdf.PdfName;
 import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfRectangle;
 import com.lowagie.text.pdf.PdfSignatureAppearance;
 import com.lowagie.text.pdf.PdfStamper;
+import com.lowagie.text.pdf.PdfStream;
 import com.lowagie.text.pdf.PdfWriter;
 
 /**
@@ -57,6 +68,211 @@ import com.lowagie.text.pdf.PdfWriter;
  * @version 1.2.20b
  */
 public class CDocumentReconstructor {
+	/**
+	 * A PdfCopy which can copy a page of another document as a form xobject,
+	 * to stamp it over the copied pages.
+	 */
+	private static final class CPdfCopy extends PdfCopy {
+		/**
+		 * Creates a new CPdfCopy object.
+		 * 
+		 * @param document
+		 *            the document
+		 * @param os
+		 *            the output stream
+		 * 
+		 * @throws DocumentException
+		 *             on error
+		 */
+		private CPdfCopy(final com.lowagie.text.Document document,
+				final OutputStream os) throws DocumentException {
+			super(document, os);
+		} // end CPdfCopy()
+
+		/**
+		 * Copy the first page of a document as a form xobject
+		 * 
+		 * @param reader
+		 *            the document
+		 * 
+		 * @return the reference of the form xobject
+		 * 
+		 * @throws IOException
+		 *             on error
+		 * @throws BadPdfFormatException
+		 *             on error
+		 */
+		private PdfIndirectReference copyForm(final PdfReader reader)
+				throws IOException, BadPdfFormatException {
+			this.setFromReader(reader);
+			final PdfStream form = new PdfStream(reader.getPageContent(1));
+			form.put(PdfName.TYPE, PdfName.XOBJECT);
+			form.put(PdfName.SUBTYPE, PdfName.FORM);
+			form.put(PdfName.BBOX, new PdfRectangle(reader.getPageSize(1)));
+			form.put(PdfName.RESOURCES, this.copyObject(PdfReader
+					.getPdfObject(reader.getPageN(1).get(PdfName.RESOURCES))));
+			form.flateCompress(this.compressionLevel);
+			return this.addToBody(form).getIndirectReference();
+		} // end copyForm()
+	} // end CPdfCopy
+
+	/**
+	 * A signing key loaded from a keystore file.
+	 */
+	private static final class CSigningKey {
+		/** certificate chain of the key */
+		private final Certificate chain[];
+
+		/** the private key */
+		private final PrivateKey key;
+
+		/** last modification date of the keystore file */
+		private final long lastModified;
+
+		/** salted digest of the passwords which opened the keystore */
+		private final byte passwords[];
+
+		/** salt of the passwords digest */
+		private final byte salt[];
+
+		/**
+		 * Creates a new CSigningKey object.
+		 * 
+		 * @param key
+		 *            the private key
+		 * @param chain
+		 *            certificate chain of the key
+		 * @param lastModified
+		 *            last modification date of the keystore file
+		 * @param keyStorepassword
+		 *            password of the keystore
+		 * @param keypassword
+		 *            password of the private key
+		 * 
+		 * @throws GeneralSecurityException
+		 *             if the digest algorithm is missing
+		 */
+		private CSigningKey(final PrivateKey key, final Certificate chain[],
+				final long lastModified, final String keyStorepassword,
+				final String keypassword) throws GeneralSecurityException {
+			this.key = key;
+			this.chain = chain;
+			this.lastModified = lastModified;
+			this.salt = new byte[16];
+			new SecureRandom().nextBytes(this.salt);
+			this.passwords = this.digest(keyStorepassword, keypassword);
+		} // end CSigningKey()
+
+		/**
+		 * return the salted digest of the passwords
+		 * 
+		 * @param keyStorepassword
+		 *            password of the keystore
+		 * @param keypassword
+		 *            password of the private key
+		 * 
+		 * @return the digest
+		 * 
+		 * @throws GeneralSecurityException
+		 *             if the digest algorithm is missing
+		 */
+		private byte[] digest(final String keyStorepassword,
+				final String keypassword) throws GeneralSecurityException {
+			final MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(this.salt);
+			try {
+				md.update(keyStorepassword.getBytes("utf-8"));
+				md.update((byte) 0);
+				md.update(keypassword.getBytes("utf-8"));
+			} // end try
+			catch (final UnsupportedEncodingException e) {
+				throw new GeneralSecurityException(e.getMessage());
+			} // end catch
+			return md.digest();
+		} // end digest()
+
+		/**
+		 * return true if the keystore was opened with these passwords
+		 * 
+		 * @param keyStorepassword
+		 *            password of the keystore
+		 * @param keypassword
+		 *            password of the private key
+		 * 
+		 * @return true if the passwords match
+		 * 
+		 * @throws GeneralSecurityException
+		 *             if the digest algorithm is missing
+		 */
+		private boolean matches(final String keyStorepassword,
+				final String keypassword) throws GeneralSecurityException {
+			return MessageDigest.isEqual(this.passwords, this.digest(
+					keyStorepassword, keypassword));
+		} // end matches()
+	} // end CSigningKey
+
+	/**
+	 * loaded signing keys by keystore type and file, an entry is replaced
+	 * when its file changes.
+	 */
+	private static final Map signingKeys = new HashMap();
+
+	/**
+	 * set title/creator/author/producer of the document
+	 * 
+	 * @param document
+	 *            the document, not yet opened
+	 * @param properties
+	 *            converter properties
+	 * @param base_url
+	 *            base url of the document
+	 * @param producer
+	 *            producer of the pdf
+	 * 
+	 * @throws DocumentException
+	 *             if the metadata can't be added
+	 */
+	private static void addMetadata(final com.lowagie.text.Document document,
+			final Map properties, final String base_url, final String producer)
+			throws DocumentException {
+		final String title = (String) properties
+				.get(IHtmlToPdfTransformer.PDF_TITLE);
+
+		if (title != null) {
+			document.addTitle(title);
+		} // end if
+		else if (base_url != null) {
+			document.addTitle(base_url);
+		} // end else if
+
+		final String creator = (String) properties
+				.get(IHtmlToPdfTransformer.PDF_CREATOR);
+
+		if (creator != null) {
+			document.addCreator(creator);
+		} // end if
+		else {
+			document.addCreator(IHtmlToPdfTransformer.VERSION);
+		} // end else
+
+		final String author = (String) properties
+				.get(IHtmlToPdfTransformer.PDF_AUTHOR);
+
+		if (author != null) {
+			document.addAuthor(author);
+		} // end if
+
+		final String sproducer = (String) properties
+				.get(IHtmlToPdfTransformer.PDF_PRODUCER);
+
+		if (sproducer != null) {
+			document.add(new Meta("Producer", sproducer));
+		} // end if
+		else {
+			document.add(new Meta("Producer", (IHtmlToPdfTransformer.VERSION + " - http://www.allcolor.org/YaHPConverter/ - " + producer)));
+		} // end else
+	} // end addMetadata()
+
 	/**
 	 * return the itext security flags for encryption
 	 * 
@@ -96,10 +312,12 @@ public class CDocumentReconstructor {
 	} // end getSecurityFlags()
 
 	/**
-	 * construct a pdf document from pdf parts.
+	 * construct a pdf document from pdf parts. The parts are copied, stamped
+	 * with the headers/footers and encrypted in one pass, signing takes a
+	 * second pass.
 	 * 
 	 * @param files
-	 *            list containing the pdf to assemble
+	 *            list containing the pdf buffers to assemble
 	 * @param properties
 	 *            converter properties
 	 * @param fout
@@ -117,36 +335,36 @@ public class CDocumentReconstructor {
 			final String producer, final PageSize [] size, final List hf)
 			throws CConvertException {
 		OutputStream out = fout;
-		OutputStream out2 = fout;
 		boolean signed = false;
-		OutputStream oldOut = null;
-		File tmp = null;
-		File tmp2 = null;
+		CPdfBuffer tmp = null;
 		try {
-			tmp = File.createTempFile("yahp", "pdf");
-			tmp2 = File.createTempFile("yahp", "pdf");
-			oldOut = out;
 			if ("true".equals(properties
 					.get(IHtmlToPdfTransformer.USE_PDF_SIGNING))) {
 				signed = true;
-				out2 = new FileOutputStream(tmp2);
+				tmp = new CPdfBuffer(properties);
+				out = tmp;
 			} // end if
-			else {
-				out2 = oldOut;
-			}
-			out = new FileOutputStream(tmp);
 			com.lowagie.text.Document document = null;
-			PdfCopy writer = null;
+			CPdfCopy writer = null;
 			boolean first = true;
 
-			
-			Map mapSizeDoc = new HashMap();
+			CHeaderFooterRenderer hfRenderer = null;
+			// one form xobject per header/footer layout, shared by the pages
+			final Map hfForms = new HashMap();
+			if (!hf.isEmpty()) {
+				int pageCount = 0;
+				for (int i = 0; i < files.size(); i++) {
+					pageCount += ((CPdfBuffer) files.get(i)).getPageCount();
+				} // end for
+				hfRenderer = new CHeaderFooterRenderer(properties, base_url,
+						pageCount);
+			} // end if
 			
 			int totalPage = 0;
 			
 			for (int i = 0; i < files.size(); i++) {
-				final File fPDF = (File) files.get(i);
-				final PdfReader reader = new PdfReader(fPDF.getAbsolutePath());
+				final CPdfBuffer fPDF = (CPdfBuffer) files.get(i);
+				final PdfReader reader = fPDF.getReader(null);
 				reader.consolidateNamedDestinations();
 
 				final int n = reader.getNumberOfPages();
@@ -158,7 +376,7 @@ public class CDocumentReconstructor {
 					document = new com.lowagie.text.Document(reader
 							.getPageSizeWithRotation(1));
 					// step 2: we create a writer that listens to the document
-					writer = new PdfCopy(document, out);
+					writer = new CPdfCopy(document, out);
 					// use pdf version 1.5
 					writer.setPdfVersion(PdfWriter.VERSION_1_3);
 					// compress the pdf
@@ -175,42 +393,8 @@ public class CDocumentReconstructor {
 								password, null, securityType);
 					} // end if
 
-					final String title = (String) properties
-							.get(IHtmlToPdfTransformer.PDF_TITLE);
-
-					if (title != null) {
-						document.addTitle(title);
-					} // end if
-					else if (base_url != null) {
-						document.addTitle(base_url);
-					} // end else if
-
-					final String creator = (String) properties
-							.get(IHtmlToPdfTransformer.PDF_CREATOR);
-
-					if (creator != null) {
-						document.addCreator(creator);
-					} // end if
-					else {
-						document.addCreator(IHtmlToPdfTransformer.VERSION);
-					} // end else
-
-					final String author = (String) properties
-							.get(IHtmlToPdfTransformer.PDF_AUTHOR);
-
-					if (author != null) {
-						document.addAuthor(author);
-					} // end if
-
-					final String sproducer = (String) properties
-							.get(IHtmlToPdfTransformer.PDF_PRODUCER);
-
-					if (sproducer != null) {
-						document.add(new Meta("Producer", sproducer));
-					} // end if
-					else {
-						document.add(new Meta("Producer", (IHtmlToPdfTransformer.VERSION + " - http://www.allcolor.org/YaHPConverter/ - " + producer)));
-					} // end else
+					CDocumentReconstructor.addMetadata(document, properties,
+							base_url, producer);
 
 					// step 3: we open the document
 					document.open();
@@ -221,69 +405,22 @@ public class CDocumentReconstructor {
 				for (int j = 0; j < n;) {
 					++j;
 					totalPage++;
-					mapSizeDoc.put(""+totalPage,""+i);
 					page = writer.getImportedPage(reader, j);
+					if (hfRenderer != null) {
+						CDocumentReconstructor.stamp(writer, reader, j, page,
+								totalPage, size[i], hf, hfRenderer, hfForms);
+					} // end if
 					writer.addPage(page);
 				} // end for
 			} // end for
 
 			document.close();
-			out.flush();
-			out.close();
-			{
-				final PdfReader reader = new PdfReader(tmp.getAbsolutePath());
-				;
-				final int n = reader.getNumberOfPages();
-				final PdfStamper stp = new PdfStamper(reader, out2);
-				int i = 0;
-				BaseFont.createFont(BaseFont.HELVETICA,
-						BaseFont.WINANSI, BaseFont.EMBEDDED);
-				final CHtmlToPdfFlyingSaucerTransformer trans = new CHtmlToPdfFlyingSaucerTransformer();
-				while (i < n) {
-					i++;
-					int indexSize = Integer.parseInt((String)mapSizeDoc.get(""+i));
-					final int[] dsize = size[indexSize].getSize();
-					final int[] dmargin = size[indexSize].getMargin();
-					for (final Iterator it = hf.iterator(); it.hasNext();) {
-						final CHeaderFooter chf = (CHeaderFooter) it.next();
-						if (chf.getSfor().equals(CHeaderFooter.ODD_PAGES)
-								&& (i % 2 == 0)) {
-							continue;
-						} else if (chf.getSfor().equals(
-								CHeaderFooter.EVEN_PAGES)
-								&& (i % 2 != 0)) {
-							continue;
-						}
-						final String text = chf.getContent().replaceAll(
-								"<pagenumber>", "" + i).replaceAll(
-								"<pagecount>", "" + n);
-						// text over the existing page
-						final PdfContentByte over = stp.getOverContent(i);
-						final ByteArrayOutputStream bbout = new ByteArrayOutputStream();
-						if (chf.getType().equals(CHeaderFooter.HEADER)) {
-							trans.transform(new ByteArrayInputStream(text.getBytes("utf-8")), base_url, new PageSize(dsize[0]-(dmargin[0]+dmargin[1]),dmargin[3]), new ArrayList(), properties, bbout);
-						} else if (chf.getType().equals(CHeaderFooter.FOOTER)) {
-							trans.transform(new ByteArrayInputStream(text.getBytes("utf-8")), base_url, new PageSize(dsize[0]-(dmargin[0]+dmargin[1]),dmargin[2]), new ArrayList(), properties, bbout);
-						}
-						final PdfReader readerHF = new PdfReader(
-								bbout.toByteArray()
-						);
-						if (chf.getType().equals(CHeaderFooter.HEADER)) {
-							over.addTemplate(stp.getImportedPage(readerHF, 1),dmargin[0],dsize[1] - dmargin[3]);
-						} else if (chf.getType().equals(CHeaderFooter.FOOTER)) {
-							over.addTemplate(stp.getImportedPage(readerHF, 1),dmargin[0],0);
-						}
-			            readerHF.close();
-					}
-				}
-				stp.close();
-			}
 			try {
-				out2.flush();
+				out.flush();
 			}
 			catch (Exception ignore) {}
 			finally {
-				try{out2.close();
+				try{out.close();
 				}catch(Exception ignore){}
 			}
 			if (signed) {
@@ -305,24 +442,20 @@ public class CDocumentReconstructor {
 				PdfReader reader = null;
 
 				if (password != null) {
-					reader = new PdfReader(tmp2.getAbsolutePath(), password
-							.getBytes());
+					reader = tmp.getReader(password.getBytes());
 				} // end if
 				else {
-					reader = new PdfReader(tmp2.getAbsolutePath());
+					reader = tmp.getReader(null);
 				} // end else
 
-				final KeyStore ks = selfSigned ? KeyStore.getInstance(KeyStore
-						.getDefaultType()) : KeyStore.getInstance("pkcs12");
-				ks.load(new FileInputStream(privateKeyFile), keyStorepassword
-						.toCharArray());
-
-				final String alias = (String) ks.aliases().nextElement();
-				final PrivateKey key = (PrivateKey) ks.getKey(alias,
-						keypassword.toCharArray());
-				final Certificate chain[] = ks.getCertificateChain(alias);
+				final CSigningKey signingKey = CDocumentReconstructor
+						.getSigningKey(privateKeyFile, selfSigned ? KeyStore
+								.getDefaultType() : "pkcs12",
+								keyStorepassword, keypassword);
+				final PrivateKey key = signingKey.key;
+				final Certificate chain[] = signingKey.chain;
 				final PdfStamper stp = PdfStamper.createSignature(reader,
-						oldOut, '\0');
+						fout, '\0');
 
 				if ("true".equals(properties
 						.get(IHtmlToPdfTransformer.USE_PDF_ENCRYPTION))) {
@@ -351,7 +484,7 @@ public class CDocumentReconstructor {
 				} // end if
 
 				stp.close();
-				oldOut.flush();
+				fout.flush();
 			} // end if
 		} // end try
 		catch (final Exception e) {
@@ -360,16 +493,241 @@ public class CDocumentReconstructor {
 							+ e.getMessage(), e);
 		} // end catch
 		finally {
-			try {
+			if (tmp != null) {
 				tmp.delete();
-			} // end try
-			catch (final Exception ignore) {
+			} // end if
+		} // end finally
+	} // end reconstruct()
+	/**
+	 * return the signing key of a keystore file, the keystore is loaded once
+	 * and again only when the file changes. The keys are cached by file and
+	 * type, the passwords are checked against a salted digest of the
+	 * passwords which opened the keystore, another password loads it again.
+	 * 
+	 * @param privateKeyFile
+	 *            path of the keystore file
+	 * @param type
+	 *            type of the keystore
+	 * @param keyStorepassword
+	 *            password of the keystore
+	 * @param keypassword
+	 *            password of the private key
+	 * 
+	 * @return the signing key
+	 * 
+	 * @throws Exception
+	 *             if the keystore can't be loaded
+	 */
+	private static CSigningKey getSigningKey(final String privateKeyFile,
+			final String type, final String keyStorepassword,
+			final String keypassword) throws Exception {
+		final String id = type + "\n" + privateKeyFile;
+		final long lastModified = new File(privateKeyFile).lastModified();
+		synchronized (CDocumentReconstructor.signingKeys) {
+			final CSigningKey signingKey = (CSigningKey) CDocumentReconstructor.signingKeys
+					.get(id);
+			if (signingKey != null) {
+				if (signingKey.lastModified != lastModified) {
+					CDocumentReconstructor.signingKeys.remove(id);
+				} // end if
+				else if (signingKey.matches(keyStorepassword, keypassword)) {
+					return signingKey;
+				} // end else if
+			} // end if
+		} // end synchronized
+		final KeyStore ks = KeyStore.getInstance(type);
+		final FileInputStream in = new FileInputStream(privateKeyFile);
+		try {
+			ks.load(in, keyStorepassword.toCharArray());
+		} // end try
+		finally {
+			in.close();
+		} // end finally
+
+		final String alias = (String) ks.aliases().nextElement();
+		final CSigningKey signingKey = new CSigningKey((PrivateKey) ks
+				.getKey(alias, keypassword.toCharArray()), ks
+				.getCertificateChain(alias), lastModified, keyStorepassword,
+				keypassword);
+		synchronized (CDocumentReconstructor.signingKeys) {
+			CDocumentReconstructor.signingKeys.put(id, signingKey);
+		} // end synchronized
+		return signingKey;
+	} // end getSigningKey()
+
+	/**
+	 * return true if the pdf parts only need to be assembled, without
+	 * headers/footers, encryption or signature.
+	 * 
+	 * @param properties
+	 *            converter properties
+	 * @param hf
+	 *            header-footer list
+	 * 
+	 * @return true if the pdf parts only need to be assembled
+	 */
+	static boolean isCopyOnly(final Map properties, final List hf) {
+		return hf.isEmpty()
+				&& !"true".equals(properties
+						.get(IHtmlToPdfTransformer.USE_PDF_ENCRYPTION))
+				&& !"true".equals(properties
+						.get(IHtmlToPdfTransformer.USE_PDF_SIGNING));
+	} // end isCopyOnly()
+
+	/**
+	 * write a document of a single pdf part directly from the renderer to
+	 * the outputstream, with the settings and metadata of a reconstructed
+	 * document. Only for documents which need no post processing, see
+	 * isCopyOnly().
+	 * 
+	 * @param renderer
+	 *            the renderer, after layout
+	 * @param properties
+	 *            converter properties
+	 * @param fout
+	 *            outputstream to write the new pdf
+	 * @param base_url
+	 *            base url of the document
+	 * @param producer
+	 *            producer of the pdf
+	 * 
+	 * @throws CConvertException
+	 *             if an error occured while writing.
+	 */
+	static void writeDirect(final ITextRenderer renderer,
+			final Map properties, final OutputStream fout,
+			final String base_url, final String producer)
+			throws CConvertException {
+		renderer.setListener(new PDFCreationListener() {
+			public void onClose(final ITextRenderer renderer) {
+				// the document is open, the metadata is written when it is
+				// closed.
+				try {
+					CDocumentReconstructor.addMetadata(renderer.getWriter()
+							.getDirectContent().getPdfDocument(), properties,
+							base_url, producer);
+				} // end try
+				catch (final DocumentException e) {
+					throw new ExceptionConverter(e);
+				} // end catch
 			}
-			try {
-				tmp2.delete();
-			} // end try
-			catch (final Exception ignore) {
+
+			public void preOpen(final ITextRenderer renderer) {
+				final PdfWriter writer = renderer.getWriter();
+				writer.setPdfVersion(PdfWriter.VERSION_1_3);
+				writer.setFullCompression();
 			}
+		});
+		try {
+			renderer.createPDF(fout, true);
+		} // end try
+		catch (final Exception e) {
+			throw new CConvertException(
+					"ERROR: An Exception occured while writing the pdf document: "
+							+ e.getMessage(), e);
+		} // end catch
+		finally {
+			renderer.setListener(null);
 		} // end finally
-	} // end reconstruct()
+	} // end writeDirect()
+
+	/**
+	 * stamp the headers/footers of a page before it is added to the copy.
+	 * 
+	 * @param writer
+	 *            the copy
+	 * @param reader
+	 *            the document of the page
+	 * @param pageIndex
+	 *            index of the page in its document
+	 * @param page
+	 *            the page
+	 * @param pageNumber
+	 *            number of the page in the copy
+	 * @param size
+	 *            page size of the document of the page
+	 * @param hf
+	 *            header-footer list
+	 * @param hfRenderer
+	 *            the header-footer renderer
+	 * @param hfForms
+	 *            the form xobjects already copied, by layout
+	 * 
+	 * @throws Exception
+	 *             if a header/footer can't be rendered or copied
+	 */
+	private static void stamp(final CPdfCopy writer, final PdfReader reader,
+			final int pageIndex, final PdfImportedPage page,
+			final int pageNumber, final PageSize size, final List hf,
+			final CHeaderFooterRenderer hfRenderer, final Map hfForms)
+			throws Exception {
+		final int[] dsize = size.getSize();
+		final int[] dmargin = size.getMargin();
+		final List chfs = new ArrayList();
+		final List layouts = new ArrayList();
+		for (final Iterator it = hf.iterator(); it.hasNext();) {
+			final CHeaderFooter chf = (CHeaderFooter) it.next();
+			if (chf.getSfor().equals(CHeaderFooter.ODD_PAGES)
+					&& (pageNumber % 2 == 0)) {
+				continue;
+			} else if (chf.getSfor().equals(
+					CHeaderFooter.EVEN_PAGES)
+					&& (pageNumber % 2 != 0)) {
+				continue;
+			}
+			if (chf.getType().equals(CHeaderFooter.HEADER)) {
+				layouts.add(hfRenderer.getLayout(chf, dsize[0]-(dmargin[0]+dmargin[1]), dmargin[3], pageNumber));
+			} else if (chf.getType().equals(CHeaderFooter.FOOTER)) {
+				layouts.add(hfRenderer.getLayout(chf, dsize[0]-(dmargin[0]+dmargin[1]), dmargin[2], pageNumber));
+			} else {
+				continue;
+			}
+			chfs.add(chf);
+		} // end for
+		if (chfs.isEmpty()) {
+			return;
+		} // end if
+		// the forms are added to the resources of the page before it is
+		// stamped, the resources are copied to not alter the shared ones.
+		final PdfDictionary pageN = reader.getPageN(pageIndex);
+		final PdfDictionary resources = new PdfDictionary();
+		final PdfDictionary xobjects = new PdfDictionary();
+		if (pageN.getAsDict(PdfName.RESOURCES) != null) {
+			resources.merge(pageN.getAsDict(PdfName.RESOURCES));
+		} // end if
+		if (resources.getAsDict(PdfName.XOBJECT) != null) {
+			xobjects.merge(resources.getAsDict(PdfName.XOBJECT));
+		} // end if
+		final PdfName names[] = new PdfName[layouts.size()];
+		for (int i = 0; i < layouts.size(); i++) {
+			final CHeaderFooterRenderer.CLayout layout = (CHeaderFooterRenderer.CLayout) layouts.get(i);
+			PdfIndirectReference form = (PdfIndirectReference) hfForms.get(layout);
+			if (form == null) {
+				final PdfReader readerHF = new PdfReader(layout.getPdf());
+				form = writer.copyForm(readerHF);
+				readerHF.close();
+				hfForms.put(layout, form);
+			} // end if
+			names[i] = new PdfName("YaHPhf" + form.getNumber());
+			xobjects.put(names[i], form);
+		} // end for
+		resources.put(PdfName.XOBJECT, xobjects);
+		pageN.put(PdfName.RESOURCES, resources);
+
+		// text over the existing page
+		final PdfCopy.PageStamp stp = writer.createPageStamp(page);
+		final PdfContentByte over = stp.getOverContent();
+		for (int i = 0; i < chfs.size(); i++) {
+			final CHeaderFooter chf = (CHeaderFooter) chfs.get(i);
+			final CHeaderFooterRenderer.CLayout layout = (CHeaderFooterRenderer.CLayout) layouts.get(i);
+			final int x = dmargin[0];
+			final int y = chf.getType().equals(CHeaderFooter.HEADER) ? dsize[1] - dmargin[3] : 0;
+			over.saveState();
+			over.concatCTM(1, 0, 0, 1, x, y);
+			over.setLiteral(names[i] + " Do\n");
+			over.restoreState();
+			layout.drawFields(over, x, y, pageNumber);
+		} // end for
+		stp.alterContents();
+	} // end stamp()
 } // end CDocumentReconstructor
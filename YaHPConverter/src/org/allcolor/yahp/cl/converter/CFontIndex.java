@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.xhtmlrenderer.pdf.ITextFontResolver;
+import org.xhtmlrenderer.pdf.TrueTypeUtil;
+import org.xhtmlrenderer.pdf.ITextFontResolver.FontDescription;
+
+import com.lowagie.text.pdf.BaseFont;
+
+/**
+ * Process wide index of the TTF fonts of the font directories. A directory
+ * is walked and its fonts are parsed once, the parsed fonts are shared by
+ * all the renderers. The directories are polled for changes, a changed
+ * directory is walked again and only its new or modified fonts are parsed.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+final class CFontIndex {
+	/**
+	 * An indexed font directory.
+	 */
+	private static final class CDirectory {
+		/** last time the directory was checked for changes */
+		private long checked;
+
+		/** last modification date of the directory and its subdirectories */
+		private final Map dirs = new HashMap();
+
+		/** the fonts, in directory walk order, never modified once walked */
+		private List fonts = new ArrayList();
+
+		/**
+		 * Return true if the directory, one of its subdirectories or one of
+		 * its fonts changed since it was walked
+		 *
+		 * @return true if the directory changed
+		 */
+		private boolean isModified() {
+			for (final Iterator it = this.dirs.entrySet().iterator(); it
+					.hasNext();) {
+				final Map.Entry entry = (Map.Entry) it.next();
+				if (new File((String) entry.getKey()).lastModified() != ((Long) entry
+						.getValue()).longValue()) {
+					return true;
+				} // end if
+			} // end for
+			for (final Iterator it = this.fonts.iterator(); it.hasNext();) {
+				final CFont font = (CFont) it.next();
+				if (new File(font.path).lastModified() != font.lastModified) {
+					return true;
+				} // end if
+			} // end for
+			return false;
+		} // end isModified()
+	} // end CDirectory
+
+	/**
+	 * A parsed font.
+	 */
+	static final class CFont {
+		/** the parsed font, null if it cannot be parsed */
+		private final FontDescription description;
+
+		/** family names of the font */
+		private final String[] families;
+
+		/** last modification date of the font file */
+		private final long lastModified;
+
+		/** path of the font file */
+		private final String path;
+
+		/**
+		 * Creates a new CFont object.
+		 *
+		 * @param path
+		 *            path of the font file
+		 * @param lastModified
+		 *            last modification date of the font file
+		 * @param families
+		 *            family names of the font
+		 * @param description
+		 *            the parsed font
+		 */
+		private CFont(final String path, final long lastModified,
+				final String[] families, final FontDescription description) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.families = families;
+			this.description = description;
+		} // end CFont()
+
+		/**
+		 * Return the path of the font file
+		 *
+		 * @return the path
+		 */
+		String getPath() {
+			return this.path;
+		} // end getPath()
+
+		/**
+		 * Register the font with a renderer font resolver
+		 *
+		 * @param resolver
+		 *            the font resolver
+		 *
+		 * @return true if the font is registered
+		 */
+		boolean register(final ITextFontResolver resolver) {
+			if (this.description == null) {
+				return false;
+			} // end if
+			try {
+				for (int i = 0; i < this.families.length; i++) {
+					final Object family = CFontIndex.getFontFamily.invoke(
+							resolver, new Object[] { this.families[i] });
+					CFontIndex.getAddFontDescription(family).invoke(family,
+							new Object[] { this.description });
+				} // end for
+				return true;
+			} // end try
+			catch (final Exception e) {
+				// the resolver cannot take a parsed font, let it parse the
+				// file.
+				try {
+					resolver.addFont(this.path, BaseFont.IDENTITY_H,
+							BaseFont.EMBEDDED);
+					return true;
+				} // end try
+				catch (final Throwable ignore) {
+					return false;
+				} // end catch
+			} // end catch
+		} // end register()
+	} // end CFont
+
+	/** minimum delay in milliseconds between two checks of a directory */
+	private static final long CHECK_INTERVAL = 5000;
+
+	/** indexed directories by path */
+	private static final Map directories = new HashMap();
+
+	/** FontFamily.addFontDescription, the class is not public */
+	private static Method addFontDescription = null;
+
+	/** ITextFontResolver.getFontFamily */
+	private static final Method getFontFamily;
+
+	/** logger */
+	private static final Logger log = Logger.getLogger(CFontIndex.class);
+
+	static {
+		Method method = null;
+		try {
+			method = ITextFontResolver.class.getMethod("getFontFamily",
+					new Class[] { String.class });
+		} // end try
+		catch (final Exception e) {
+			CFontIndex.log.warn("Fonts will be parsed by each renderer", e);
+		} // end catch
+		getFontFamily = method;
+	} // end static
+
+	/**
+	 * Return FontFamily.addFontDescription
+	 *
+	 * @param family
+	 *            a font family
+	 *
+	 * @return the method
+	 *
+	 * @throws Exception
+	 *             if the method is not accessible
+	 */
+	private static synchronized Method getAddFontDescription(
+			final Object family) throws Exception {
+		if (CFontIndex.addFontDescription == null) {
+			final Method method = family.getClass().getMethod(
+					"addFontDescription",
+					new Class[] { FontDescription.class });
+			method.setAccessible(true);
+			CFontIndex.addFontDescription = method;
+		} // end if
+		return CFontIndex.addFontDescription;
+	} // end getAddFontDescription()
+
+	/**
+	 * Return the fonts of a directory, walk the directory if it is not
+	 * indexed yet or if it changed
+	 *
+	 * @param dir
+	 *            the font directory
+	 *
+	 * @return the fonts, in directory walk order, the list must not be
+	 *         modified
+	 */
+	static List getFonts(final File dir) {
+		final String key = dir.getAbsolutePath();
+		synchronized (CFontIndex.directories) {
+			CDirectory directory = (CDirectory) CFontIndex.directories.get(key);
+			final long now = System.currentTimeMillis();
+			if (directory == null) {
+				directory = new CDirectory();
+				CFontIndex.index(dir, directory, new HashMap());
+				directory.checked = now;
+				CFontIndex.directories.put(key, directory);
+			} // end if
+			else if (now - directory.checked >= CFontIndex.CHECK_INTERVAL) {
+				if (directory.isModified()) {
+					final Map known = new HashMap();
+					for (final Iterator it = directory.fonts.iterator(); it
+							.hasNext();) {
+						final CFont font = (CFont) it.next();
+						known.put(font.path, font);
+					} // end for
+					CFontIndex.index(dir, directory, known);
+				} // end if
+				directory.checked = now;
+			} // end else if
+			return directory.fonts;
+		} // end synchronized
+	} // end getFonts()
+
+	/**
+	 * Walk a font directory and parse its new or modified fonts
+	 *
+	 * @param dir
+	 *            the font directory
+	 * @param directory
+	 *            the index to fill
+	 * @param known
+	 *            the fonts already parsed by path
+	 */
+	private static void index(final File dir, final CDirectory directory,
+			final Map known) {
+		final List fonts = new ArrayList();
+		directory.dirs.clear();
+		CFontIndex.index(dir, directory.dirs, fonts, known);
+		directory.fonts = fonts;
+	} // end index()
+
+	/**
+	 * Walk a file or directory and parse its new or modified fonts
+	 *
+	 * @param f
+	 *            the file or directory to walk
+	 * @param dirs
+	 *            map to fill with the last modification date of the
+	 *            directories
+	 * @param fonts
+	 *            list to fill with the fonts
+	 * @param known
+	 *            the fonts already parsed by path
+	 */
+	private static void index(final File f, final Map dirs, final List fonts,
+			final Map known) {
+		if (f.isDirectory()) {
+			dirs.put(f.getAbsolutePath(), new Long(f.lastModified()));
+			final File[] list = f.listFiles();
+			if (list != null) {
+				for (int i = 0; i < list.length; i++) {
+					CFontIndex.index(list[i], dirs, fonts, known);
+				} // end for
+			} // end if
+		} // end if
+		else if (f.getName().toLowerCase().endsWith(".ttf")) {
+			final String path = f.getAbsolutePath();
+			final long lastModified = f.lastModified();
+			CFont font = (CFont) known.get(path);
+			if ((font == null) || (font.lastModified != lastModified)) {
+				font = CFontIndex.parse(path, lastModified);
+			} // end if
+			fonts.add(font);
+		} // end else if
+	} // end index()
+
+	/**
+	 * Parse a font file
+	 *
+	 * @param path
+	 *            path of the font file
+	 * @param lastModified
+	 *            last modification date of the font file
+	 *
+	 * @return the parsed font
+	 */
+	private static CFont parse(final String path, final long lastModified) {
+		try {
+			final BaseFont font = BaseFont.createFont(path,
+					BaseFont.IDENTITY_H, BaseFont.EMBEDDED, false, null, null);
+			final FontDescription description = new FontDescription(font);
+			TrueTypeUtil.populateDescription(path, font, description);
+			return new CFont(path, lastModified, TrueTypeUtil
+					.getFamilyNames(font), description);
+		} // end try
+		catch (final Throwable e) {
+			CFontIndex.log.warn("Cannot read the font " + path, e);
+			return new CFont(path, lastModified, new String[0], null);
+		} // end catch
+	} // end parse()
+
+	/**
+	 * Creates a new CFontIndex object.
+	 */
+	private CFontIndex() {
+	} // end CFontIndex()
+} // end CFontIndex
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer;
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CConvertException;
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CHeaderFooter;
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer.PageSize;
+import org.xhtmlrenderer.css.parser.FSColor;
+import org.xhtmlrenderer.css.parser.FSRGBColor;
+import org.xhtmlrenderer.css.style.CalculatedStyle;
+import org.xhtmlrenderer.pdf.ITextFSFont;
+import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.pdf.PagePosition;
+import org.xhtmlrenderer.render.FSFont;
+import org.xhtmlrenderer.render.InlineLayoutBox;
+import org.xhtmlrenderer.render.InlineText;
+
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.PdfContentByte;
+
+/**
+ * Lays out the headers/footers of a document. A header/footer is laid out
+ * once per template and page geometry, the page number is laid out as a
+ * hidden placeholder and drawn over the rendered template for each page.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+final class CHeaderFooterRenderer {
+	/**
+	 * A page number laid out in a header/footer.
+	 */
+	private static final class CField {
+		/** text color */
+		private final Color color;
+
+		/** text font */
+		private final BaseFont font;
+
+		/** font size in points */
+		private final float size;
+
+		/** left of the baseline in points, from the left of the template */
+		private final float x;
+
+		/** baseline in points, from the bottom of the template */
+		private final float y;
+
+		/**
+		 * Creates a new CField object.
+		 *
+		 * @param font
+		 *            text font
+		 * @param size
+		 *            font size
+		 * @param color
+		 *            text color
+		 * @param x
+		 *            baseline position
+		 * @param y
+		 *            baseline position
+		 */
+		private CField(final BaseFont font, final float size,
+				final Color color, final float x, final float y) {
+			this.font = font;
+			this.size = size;
+			this.color = color;
+			this.x = x;
+			this.y = y;
+		} // end CField()
+	} // end CField
+
+	/**
+	 * A laid out header/footer.
+	 */
+	static final class CLayout {
+		/** page numbers to draw over the template */
+		private final List fields;
+
+		/** the rendered template */
+		private final byte[] pdf;
+
+		/**
+		 * Creates a new CLayout object.
+		 *
+		 * @param pdf
+		 *            the rendered template
+		 * @param fields
+		 *            page numbers to draw over the template
+		 */
+		private CLayout(final byte[] pdf, final List fields) {
+			this.pdf = pdf;
+			this.fields = fields;
+		} // end CLayout()
+
+		/**
+		 * Draw the page numbers of a page
+		 *
+		 * @param over
+		 *            content of the page
+		 * @param x
+		 *            position of the template on the page
+		 * @param y
+		 *            position of the template on the page
+		 * @param page
+		 *            the page number
+		 */
+		void drawFields(final PdfContentByte over, final float x,
+				final float y, final int page) {
+			final String text = String.valueOf(page);
+			for (final Iterator it = this.fields.iterator(); it.hasNext();) {
+				final CField field = (CField) it.next();
+				over.saveState();
+				over.beginText();
+				over.setFontAndSize(field.font, field.size);
+				over.setColorFill(field.color);
+				over.setTextMatrix(x + field.x, y + field.y);
+				over.showText(text);
+				over.endText();
+				over.restoreState();
+			} // end for
+		} // end drawFields()
+
+		/**
+		 * Return the rendered template
+		 *
+		 * @return the rendered template
+		 */
+		byte[] getPdf() {
+			return this.pdf;
+		} // end getPdf()
+	} // end CLayout
+
+	/** id prefix of the page number placeholders */
+	private static final String FIELD_ID = "yahp-pagenumber-";
+
+	/** matches the page number placeholders */
+	private static final Pattern FIELD_PATTERN = Pattern.compile("^"
+			+ CHeaderFooterRenderer.FIELD_ID + "[0-9]+$");
+
+	/**
+	 * Collect the page number placeholders laid out by a renderer
+	 *
+	 * @param renderer
+	 *            the renderer, after layout
+	 * @param fields
+	 *            list to fill
+	 */
+	static void collectFields(final ITextRenderer renderer, final List fields) {
+		final Map ids = renderer.getSharedContext().getIdMap();
+		if (ids == null) {
+			return;
+		} // end if
+		final float dotsPerPoint = renderer.getDotsPerPoint();
+		final List positions = renderer
+				.findPagePositionsByID(CHeaderFooterRenderer.FIELD_PATTERN);
+		for (final Iterator it = positions.iterator(); it.hasNext();) {
+			final PagePosition position = (PagePosition) it.next();
+			if (position.getPageNo() != 0) {
+				continue;
+			} // end if
+			final Object box = ids.get(position.getId());
+			if (!(box instanceof InlineLayoutBox)) {
+				continue;
+			} // end if
+			final InlineLayoutBox inline = (InlineLayoutBox) box;
+			InlineText text = null;
+			for (final Iterator cit = inline.getInlineChildren().iterator(); cit
+					.hasNext();) {
+				final Object child = cit.next();
+				if (child instanceof InlineText) {
+					text = (InlineText) child;
+					break;
+				} // end if
+			} // end for
+			if (text == null) {
+				continue;
+			} // end if
+			final CalculatedStyle style = inline.getStyle();
+			final FSFont font = style.getFSFont(renderer.getSharedContext()
+					.newLayoutContextInstance());
+			if (!(font instanceof ITextFSFont)) {
+				continue;
+			} // end if
+			Color color = Color.black;
+			final FSColor fscolor = style.getColor();
+			if (fscolor instanceof FSRGBColor) {
+				final FSRGBColor rgb = (FSRGBColor) fscolor;
+				color = new Color(rgb.getRed(), rgb.getGreen(), rgb.getBlue());
+			} // end if
+			fields.add(new CField(((ITextFSFont) font).getFontDescription()
+					.getFont(), font.getSize2D() / dotsPerPoint, color,
+					position.getX() + (text.getX() / dotsPerPoint), position
+							.getY()
+							+ ((inline.getHeight() - inline.getBaseline()) / dotsPerPoint)));
+		} // end for
+	} // end collectFields()
+
+	/**
+	 * Return the number of occurences of a string
+	 *
+	 * @param text
+	 *            the text to search
+	 * @param search
+	 *            the string to count
+	 *
+	 * @return the number of occurences
+	 */
+	private static int count(final String text, final String search) {
+		int count = 0;
+		int index = text.indexOf(search);
+		while (index != -1) {
+			count++;
+			index = text.indexOf(search, index + search.length());
+		} // end while
+		return count;
+	} // end count()
+
+	/** base url of the document */
+	private final String base_url;
+
+	/** laid out headers/footers */
+	private final Map layouts = new HashMap();
+
+	/** number of pages of the document */
+	private final int pageCount;
+
+	/** converter properties */
+	private final Map properties;
+
+	/** the transformer used to render the headers/footers */
+	private final CHtmlToPdfFlyingSaucerTransformer trans = new CHtmlToPdfFlyingSaucerTransformer();
+
+	/**
+	 * Creates a new CHeaderFooterRenderer object.
+	 *
+	 * @param properties
+	 *            converter properties
+	 * @param base_url
+	 *            base url of the document
+	 * @param pageCount
+	 *            number of pages of the document
+	 */
+	CHeaderFooterRenderer(final Map properties, final String base_url,
+			final int pageCount) {
+		// the headers/footers are stamped in the document, they are neither
+		// encrypted nor signed on their own.
+		this.properties = new HashMap(properties);
+		this.properties.remove(IHtmlToPdfTransformer.USE_PDF_ENCRYPTION);
+		this.properties.remove(IHtmlToPdfTransformer.USE_PDF_SIGNING);
+		this.base_url = base_url;
+		this.pageCount = pageCount;
+	} // end CHeaderFooterRenderer()
+
+	/**
+	 * Return the layout of a header/footer for a page. The template is laid
+	 * out once for each page geometry and page number length, a template
+	 * which cannot be laid out with placeholders is laid out for each
+	 * distinct text.
+	 *
+	 * @param chf
+	 *            the header/footer
+	 * @param width
+	 *            width of the header/footer
+	 * @param height
+	 *            height of the header/footer
+	 * @param page
+	 *            the page number
+	 *
+	 * @return the layout
+	 *
+	 * @throws CConvertException
+	 *             if the header/footer cannot be rendered
+	 */
+	CLayout getLayout(final CHeaderFooter chf, final int width,
+			final int height, final int page) throws CConvertException {
+		final String content = chf.getContent().replaceAll("<pagecount>",
+				"" + this.pageCount);
+		final String spage = "" + page;
+		final String key = width + "x" + height + ":" + spage.length() + ":"
+				+ content;
+		CLayout layout = (CLayout) this.layouts.get(key);
+		if (layout == null) {
+			final int count = CHeaderFooterRenderer.count(content,
+					"<pagenumber>");
+			if (count > 0) {
+				final StringBuffer placeholder = new StringBuffer();
+				for (int i = 0; i < spage.length(); i++) {
+					placeholder.append('0');
+				} // end for
+				final StringBuffer text = new StringBuffer();
+				int index = 0;
+				for (int i = 0; i < count; i++) {
+					final int next = content.indexOf("<pagenumber>", index);
+					text.append(content.substring(index, next));
+					text.append("<span style=\"visibility: hidden;\" id=\"");
+					text.append(CHeaderFooterRenderer.FIELD_ID);
+					text.append(i);
+					text.append("\">");
+					text.append(placeholder);
+					text.append("</span>");
+					index = next + "<pagenumber>".length();
+				} // end for
+				text.append(content.substring(index));
+				final List fields = new ArrayList();
+				final byte[] pdf = this.render(text.toString(), width, height,
+						fields);
+				if (fields.size() == count) {
+					layout = new CLayout(pdf, fields);
+				} // end if
+			} // end if
+			else {
+				layout = new CLayout(this.render(content, width, height, null),
+						new ArrayList());
+			} // end else
+			if (layout != null) {
+				this.layouts.put(key, layout);
+			} // end if
+		} // end if
+		if (layout == null) {
+			// the placeholders were not laid out as text, fall back to the
+			// complete text of the page.
+			final String text = content.replaceAll("<pagenumber>", spage);
+			final String textKey = width + "x" + height + "::" + text;
+			layout = (CLayout) this.layouts.get(textKey);
+			if (layout == null) {
+				layout = new CLayout(this.render(text, width, height, null),
+						new ArrayList());
+				this.layouts.put(textKey, layout);
+			} // end if
+		} // end if
+		return layout;
+	} // end getLayout()
+
+	/**
+	 * Render a header/footer html text
+	 *
+	 * @param text
+	 *            the html text
+	 * @param width
+	 *            width of the header/footer
+	 * @param height
+	 *            height of the header/footer
+	 * @param fields
+	 *            list to fill with the page number placeholders, or null
+	 *
+	 * @return the rendered pdf
+	 *
+	 * @throws CConvertException
+	 *             if the header/footer cannot be rendered
+	 */
+	private byte[] render(final String text, final int width,
+			final int height, final List fields) throws CConvertException {
+		try {
+			final ByteArrayOutputStream bbout = new ByteArrayOutputStream();
+			this.trans.transform(new ByteArrayInputStream(text
+					.getBytes("utf-8")), this.base_url, new PageSize(width,
+					height), this.properties, bbout, fields);
+			return bbout.toByteArray();
+		} // end try
+		catch (final CConvertException e) {
+			throw e;
+		} // end catch
+		catch (final Exception e) {
+			throw new CConvertException(
+					"ERROR: An Exception occured while rendering a header/footer: "
+							+ e.getMessage(), e);
+		} // end catch
+	} // end render()
+} // end CHeaderFooterRenderer
@@ -22,22 +22,21 @@ package org.allcolor.yahp.cl.converter;
 
 //import java.awt.Font;
 //import java.awt.GraphicsEnvironment;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -46,10 +45,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.allcolor.css.parser.CCSSParser;
 import org.allcolor.xml.parser.CShaniDomParser;
 import org.allcolor.xml.parser.CXmlParser;
 import org.allcolor.xml.parser.dom.ADocument;
@@ -63,11 +65,18 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
-import org.w3c.dom.css.CSSStyleSheet;
 import org.w3c.tidy.Tidy;
+import org.xhtmlrenderer.context.StyleReference;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
+import org.xhtmlrenderer.css.sheet.StylesheetInfo;
+import org.xhtmlrenderer.pdf.ITextFSImage;
+import org.xhtmlrenderer.pdf.ITextOutputDevice;
 import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.pdf.ITextUserAgent;
+import org.xhtmlrenderer.resource.ImageResource;
+import org.xhtmlrenderer.simple.extend.XhtmlNamespaceHandler;
 
-import com.lowagie.text.pdf.BaseFont;;
+import com.lowagie.text.Image;
 
 /**
  * This class transform an html document in a PDF.
@@ -77,95 +86,498 @@ import com.lowagie.text.pdf.BaseFont;;
  */
 public final class CHtmlToPdfFlyingSaucerTransformer implements
 		IHtmlToPdfTransformer {
+	/**
+	 * A char buffer which can be read back without copying its content.
+	 */
+	private static final class CCharBuffer extends CharArrayWriter {
+		private CCharBuffer(final int initialSize) {
+			super(initialSize);
+		}
+
+		private Reader getReader() {
+			return new CharArrayReader(this.buf, 0, this.count);
+		}
+	}
+
+	/**
+	 * Shares the page-break segments of a document between the threads
+	 * rendering them. Each thread takes the next segment until all are done
+	 * or one failed.
+	 */
+	private final class CSegmentWorker implements Runnable {
+		private final DocumentAndSize[] docs;
+
+		private Throwable error = null;
+
+		private final ClassLoader loader;
+
+		private int next = 0;
+
+		private final CPdfBuffer[] pdfs;
+
+		private final CResourcePrefetcher prefetcher;
+
+		private final Map properties;
+
+		private int running = 0;
+
+		private final String[] urls;
+
+		private CSegmentWorker(final DocumentAndSize[] docs,
+				final String[] urls, final Map properties,
+				final CPdfBuffer[] pdfs, final CResourcePrefetcher prefetcher,
+				final ClassLoader loader) {
+			this.docs = docs;
+			this.urls = urls;
+			this.properties = properties;
+			this.pdfs = pdfs;
+			this.prefetcher = prefetcher;
+			this.loader = loader;
+		}
+
+		private synchronized void fail(final Throwable e) {
+			if (this.error == null) {
+				this.error = e;
+			}
+		}
+
+		private synchronized int nextSegment() {
+			if ((this.error != null) || (this.next >= this.docs.length)) {
+				return -1;
+			}
+			return this.next++;
+		}
+
+		public void run() {
+			synchronized (this) {
+				this.running++;
+			}
+			final Thread current = Thread.currentThread();
+			final ClassLoader cx = current.getContextClassLoader();
+			current.setContextClassLoader(this.loader);
+			try {
+				int i = -1;
+				while ((i = this.nextSegment()) != -1) {
+					try {
+						CHtmlToPdfFlyingSaucerTransformer.checkInterrupted();
+						CHtmlToPdfFlyingSaucerTransformer.this.renderSegment(
+								this.docs[i].doc, this.urls[i],
+								this.properties, this.pdfs, i, null,
+								this.prefetcher);
+					} catch (final Throwable e) {
+						this.fail(e);
+					}
+				}
+			} finally {
+				current.setContextClassLoader(cx);
+				synchronized (this) {
+					this.running--;
+					this.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Wait until no thread renders a segment anymore, so that every
+		 * pdf buffer is in pdfs. The wait is not interruptible, the
+		 * interrupt status is kept.
+		 */
+		private synchronized void waitForWorkers() {
+			boolean interrupted = false;
+			while (this.running > 0) {
+				try {
+					this.wait();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private synchronized void throwError() throws Exception {
+			if (this.error instanceof Exception) {
+				throw (Exception) this.error;
+			} else if (this.error instanceof Error) {
+				throw (Error) this.error;
+			}
+		}
+	}
+
 	private static class _ITextRenderer extends ITextRenderer {
+		/** fields of the renderer referencing the last document */
+		private static final Field[] RENDERER_STATE = _ITextRenderer
+				.getFields(ITextRenderer.class, new String[] { "_doc",
+						"_root", "_pdfDoc", "_writer", "_pdfEncryption" });
+
+		/** fields of the style reference referencing the last document */
+		private static final Field[] STYLE_STATE = _ITextRenderer.getFields(
+				StyleReference.class, new String[] { "_doc", "_matcher",
+						"_nsh" });
+
+		private static Field[] getFields(final Class c, final String[] names) {
+			try {
+				final Field[] fields = new Field[names.length];
+				for (int i = 0; i < names.length; i++) {
+					fields[i] = c.getDeclaredField(names[i]);
+					fields[i].setAccessible(true);
+				}
+				return fields;
+			} catch (final Exception e) {
+				return null;
+			}
+		}
+
 		private final Map knownFont = new HashMap();
 
+		private final _UserAgent userAgent;
+
+		private _ITextRenderer() {
+			this.userAgent = new _UserAgent(this.getOutputDevice());
+			this.userAgent.setSharedContext(this.getSharedContext());
+			this.getSharedContext().setUserAgentCallback(this.userAgent);
+		}
+
 		private void addKnown(final String path) {
 			this.knownFont.put(path, path);
 		}
 
+		/**
+		 * Drop the state of the last conversion before the renderer goes
+		 * back to the pool: its decoded images, its properties, its
+		 * document and the boxes laid out from it. Only the registered
+		 * fonts are kept.
+		 * 
+		 * @return false if the state could not be dropped, the renderer must
+		 *         not be reused
+		 */
+		private boolean clear() {
+			this.userAgent.clearImageCache();
+			this.userAgent.prefetcher = null;
+			this.userAgent.properties = null;
+			this.getOutputDevice().setWriter(null);
+			this.getOutputDevice().setRoot(null);
+			this.getSharedContext().reset();
+			this.getSharedContext().setNamespaceHandler(null);
+			if ((_ITextRenderer.RENDERER_STATE == null)
+					|| (_ITextRenderer.STYLE_STATE == null)) {
+				return false;
+			}
+			try {
+				for (int i = 0; i < _ITextRenderer.RENDERER_STATE.length; i++) {
+					_ITextRenderer.RENDERER_STATE[i].set(this, null);
+				}
+				final StyleReference css = this.getSharedContext().getCss();
+				if (css != null) {
+					for (int i = 0; i < _ITextRenderer.STYLE_STATE.length; i++) {
+						_ITextRenderer.STYLE_STATE[i].set(css, null);
+					}
+				}
+				return true;
+			} catch (final Exception e) {
+				return false;
+			}
+		}
+
 		private boolean isKnown(final String path) {
 			return this.knownFont.get(path) != null;
 		}
 	}
 
-	private static final Logger log = Logger
-			.getLogger(CHtmlToPdfFlyingSaucerTransformer.class);
+	/**
+	 * Hands the linked stylesheets to the renderer from the prefetcher or
+	 * the stylesheet cache, already parsed.
+	 */
+	private final class _NamespaceHandler extends XhtmlNamespaceHandler {
+		private final CResourcePrefetcher prefetcher;
+
+		private final Map properties;
+
+		private final String urlForBase;
 
-	private static boolean accept(final File dir, final String name) {
-		return name.toLowerCase().endsWith(".ttf");
+		private _NamespaceHandler(final String urlForBase,
+				final Map properties, final CResourcePrefetcher prefetcher) {
+			this.urlForBase = urlForBase;
+			this.properties = properties;
+			this.prefetcher = prefetcher;
+		}
+
+		protected StylesheetInfo readLinkElement(final Element link) {
+			if ("stylesheet".equals(link.getAttribute("rel"))) {
+				try {
+					final String url = CHtmlToPdfFlyingSaucerTransformer.this
+							.normalizeLink(this.urlForBase, link
+									.getAttribute("href"));
+					Stylesheet sheet = null;
+					if (this.prefetcher != null) {
+						sheet = this.prefetcher.getStyleSheet(url);
+					}
+					if (sheet == null) {
+						sheet = CStyleSheetCache.getStyleSheet(url,
+								this.properties);
+					}
+					if (sheet != null) {
+						final StylesheetInfo info = new StylesheetInfo();
+						info.setType("text/css");
+						info.setOrigin(StylesheetInfo.AUTHOR);
+						info.setUri(sheet.getURI());
+						final String media = link.getAttribute("media");
+						info.setMedia("".equals(media) ? "all" : media);
+						info.setStylesheet(sheet);
+						return info;
+					}
+				} catch (final Throwable ignore) {
+				}
+			}
+			return super.readLinkElement(link);
+		}
 	}
 
-	private static void registerTTF(final File f, final _ITextRenderer renderer) {
-		if (f.isDirectory()) {
-			final File[] list = f.listFiles();
-			if (list != null) {
-				for (int i = 0; i < list.length; i++) {
-					CHtmlToPdfFlyingSaucerTransformer.registerTTF(list[i],
-							renderer);
+	/**
+	 * Reads the resources from the prefetcher of the document being laid
+	 * out, if any, and the images from the process wide image cache.
+	 */
+	private static final class _UserAgent extends ITextUserAgent {
+		private CResourcePrefetcher prefetcher = null;
+
+		private Map properties = null;
+
+		private _UserAgent(final ITextOutputDevice outputDevice) {
+			super(outputDevice);
+		}
+
+		public ImageResource getImageResource(final String uri) {
+			final Map props = this.properties;
+			final String resolved = this.resolveURI(uri);
+			if ((props == null) || (resolved == null)
+					|| !CImageCache.isEnabled(props)) {
+				return super.getImageResource(uri);
+			}
+			try {
+				final String path = new URL(resolved).getPath();
+				if ((path != null) && path.toLowerCase().endsWith(".pdf")) {
+					// pdf pages are imported through the output device.
+					return super.getImageResource(uri);
 				}
+			} catch (final MalformedURLException e) {
+				return super.getImageResource(uri);
 			}
-		} else if (CHtmlToPdfFlyingSaucerTransformer.accept(f.getParentFile(),
-				f.getName())) {
-			if (!renderer.isKnown(f.getAbsolutePath())) {
-				/*InputStream in = null;
+			Image image = CImageCache.getImage(resolved);
+			if (image == null) {
+				final InputStream in = this.resolveAndOpenStream(resolved);
+				if (in == null) {
+					return new ImageResource(resolved, null);
+				}
 				try {
-					in = f.toURI().toURL().openStream();
-					GraphicsEnvironment.getLocalGraphicsEnvironment().registerFont(Font.createFont(Font.TRUETYPE_FONT, in));
-				} catch (final Throwable ignore) {
+					final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+					int iNbByteRead = -1;
+					final byte bbuffer[] = new byte[16384];
+					while ((iNbByteRead = in.read(bbuffer)) != -1) {
+						bOut.write(bbuffer, 0, iNbByteRead);
+					}
+					image = Image.getInstance(bOut.toByteArray());
+				} catch (final Exception e) {
+					CHtmlToPdfFlyingSaucerTransformer.log.warn(
+							"Can't read image file '" + resolved + "'", e);
+					return new ImageResource(resolved, null);
 				} finally {
 					try {
-						if (in != null) {
-							in.close();
-						}
-					} catch (final Exception ignore) {
+						in.close();
+					} catch (final IOException ignore) {
 					}
-				}*/
-				try {
-					renderer.getFontResolver().addFont(f.getAbsolutePath(),
-							BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
-					renderer.addKnown(f.getAbsolutePath());
-				} catch (final Throwable ignore) {
+				}
+				CImageCache.putImage(resolved, image, props);
+			}
+			// the cached image is shared, the renderer scales a copy.
+			final Image copy = Image.getInstance(image);
+			final float dotsPerPixel = this.getSharedContext()
+					.getDotsPerPixel();
+			copy.scaleAbsolute(copy.getPlainWidth() * dotsPerPixel, copy
+					.getPlainHeight()
+					* dotsPerPixel);
+			return new ImageResource(resolved, new ITextFSImage(copy));
+		}
+
+		protected InputStream resolveAndOpenStream(final String uri) {
+			final CResourcePrefetcher p = this.prefetcher;
+			if ((p != null) && (uri != null)) {
+				final byte[] content = p.getResource(uri);
+				if (content != null) {
+					return new ByteArrayInputStream(content);
 				}
 			}
+			return super.resolveAndOpenStream(uri);
 		}
 	}
 
-	private static String removeScript(String a) {
-		final List toRemove = new ArrayList();
-		final Pattern p = Pattern.compile("(<script\\s*)");
-		final Matcher m = p.matcher(a);
-		int start = 0;
-		while (m.find(start)) {
-			final int is = m.start();
-			int ie = m.start();
-			while (ie < a.length()) {
-				if (a.substring(ie).startsWith("</script>")) {
-					ie = ie + 9;
-					break;
-				} else {
-					ie++;
+	/** producer of the pdf */
+	private static final String PRODUCER = "Flying Saucer Renderer (https://xhtmlrenderer.dev.java.net/)";
+
+	private static final Logger log = Logger
+			.getLogger(CHtmlToPdfFlyingSaucerTransformer.class);
+
+	/**
+	 * Stop the conversion if its thread was interrupted, the conversion was
+	 * cancelled.
+	 */
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("The conversion was interrupted.");
+		}
+	}
+
+	/**
+	 * Give a renderer back to the pool, cleared of the state of its
+	 * conversion. A renderer which failed is not reused.
+	 * 
+	 * @param renderer
+	 *            the renderer
+	 * @param reusable
+	 *            true if the renderer completed its work
+	 */
+	private static void giveBack(final _ITextRenderer renderer,
+			final boolean reusable) {
+		if (reusable && renderer.clear()) {
+			CHtmlToPdfFlyingSaucerTransformer.rendererPool.release(renderer);
+		} else {
+			CHtmlToPdfFlyingSaucerTransformer.rendererPool.discard(renderer);
+		}
+	}
+
+	/**
+	 * Register the fonts of a font directory with a renderer, the fonts are
+	 * taken already parsed from the font index.
+	 * 
+	 * @param dir
+	 *            the font directory
+	 * @param renderer
+	 *            the renderer
+	 */
+	private static void registerTTF(final File dir,
+			final _ITextRenderer renderer) {
+		final List fonts = CFontIndex.getFonts(dir);
+		for (int i = 0; i < fonts.size(); i++) {
+			final CFontIndex.CFont font = (CFontIndex.CFont) fonts.get(i);
+			if (!renderer.isKnown(font.getPath())) {
+				if (font.register(renderer.getFontResolver())) {
+					renderer.addKnown(font.getPath());
 				}
 			}
-			start = ie + 1;
-			toRemove.add(a.substring(is, ie));
-			if (start >= a.length()) {
-				break;
+		}
+	}
+
+	/**
+	 * Remove the script elements of the given document. The elements are
+	 * collected first, the node list needs not be live.
+	 * 
+	 * @param doc
+	 *            the document to clean
+	 */
+	private static void removeScript(final Document doc) {
+		final NodeList nl = doc.getElementsByTagName("script");
+		final Node[] scripts = new Node[nl.getLength()];
+		for (int i = 0; i < scripts.length; i++) {
+			scripts[i] = nl.item(i);
+		}
+		for (int i = 0; i < scripts.length; i++) {
+			final Node parent = scripts[i].getParentNode();
+			if (parent != null) {
+				parent.removeChild(scripts[i]);
 			}
 		}
-		for (int i = 0; i < toRemove.size(); i++) {
-			final String rem = (String) toRemove.get(i);
-			final int index = a.indexOf(rem);
-			a = a.substring(0, index) + a.substring(index + rem.length());
+	}
+
+	/** default maximum number of pooled renderers */
+	private static final int DEFAULT_POOL_MAX = Math.max(2, 2 * Runtime
+			.getRuntime().availableProcessors());
+
+	/** default idle timeout of the pooled renderers : 1 minute */
+	private static final long DEFAULT_POOL_IDLE_TIMEOUT = 60000;
+
+	/** pooled dom parsers */
+	private static final CObjectPool parserPool = new CObjectPool("parser") {
+		protected Object create() {
+			return CHtmlToPdfFlyingSaucerTransformer.newCShaniDomParser();
+		}
+	};
+
+	/** pooled renderers */
+	private static final CObjectPool rendererPool = new CObjectPool(
+			"renderer") {
+		protected Object create() {
+			return new _ITextRenderer();
 		}
-		return a;
+	};
+
+	/** pooled tidy parsers */
+	private static final CObjectPool tidyPool = new CObjectPool("tidy") {
+		protected Object create() {
+			return CHtmlToPdfFlyingSaucerTransformer.newTidy();
+		}
+	};
+
+	static {
+		// the pools are process wide, they are sized once from the system
+		// properties and not by the properties of a conversion.
+		Map properties = null;
+		try {
+			properties = System.getProperties();
+		} catch (final SecurityException e) {
+			properties = new HashMap();
+		}
+		CHtmlToPdfFlyingSaucerTransformer.configurePools(properties);
+	}
+
+	/**
+	 * Size the pools from the RENDERER_POOL_* properties, the pools are
+	 * filled up to RENDERER_POOL_MIN objects in the background.
+	 * 
+	 * @param properties
+	 *            the system properties
+	 */
+	private static void configurePools(final Map properties) {
+		final int min = (int) CHtmlToPdfFlyingSaucerTransformer.getLong(
+				properties, IHtmlToPdfTransformer.RENDERER_POOL_MIN, 0);
+		final int max = (int) CHtmlToPdfFlyingSaucerTransformer.getLong(
+				properties, IHtmlToPdfTransformer.RENDERER_POOL_MAX,
+				CHtmlToPdfFlyingSaucerTransformer.DEFAULT_POOL_MAX);
+		final long idleTimeout = CHtmlToPdfFlyingSaucerTransformer.getLong(
+				properties, IHtmlToPdfTransformer.RENDERER_POOL_IDLE_TIMEOUT,
+				CHtmlToPdfFlyingSaucerTransformer.DEFAULT_POOL_IDLE_TIMEOUT);
+		CHtmlToPdfFlyingSaucerTransformer.rendererPool.configure(min, max,
+				idleTimeout);
+		CHtmlToPdfFlyingSaucerTransformer.parserPool.configure(min, max,
+				idleTimeout);
+		CHtmlToPdfFlyingSaucerTransformer.tidyPool.configure(min, max,
+				idleTimeout);
 	}
 
-	private final ThreadLocal tlparser = new ThreadLocal();
+	private static long getLong(final Map properties, final String name,
+			final long defaultValue) {
+		final Object value = properties.get(name);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.toString().trim());
+			} catch (final NumberFormatException ignore) {
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Return the pool of the renderers, to monitor its occupancy and the
+	 * time spent waiting for a renderer.
+	 * 
+	 * @return the renderer pool
+	 */
+	public static CObjectPool getRendererPool() {
+		return CHtmlToPdfFlyingSaucerTransformer.rendererPool;
+	}
 
-	private final ThreadLocal tlrenderer = new ThreadLocal();
+	private final Object poolLock = new Object();
 
-	private final ThreadLocal tltidy = new ThreadLocal();
+	private ExecutorService renderingPool = null;
 
 	/**
 	 * Creates a new CHtmlToPdfFlyingSaucerTransformer object.
@@ -412,38 +824,14 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 
 	}
 
-	private CShaniDomParser getCShaniDomParser() {
-		final Reference ref = (Reference) this.tlparser.get();
-		final CShaniDomParser parser = (CShaniDomParser) (ref == null ? null
-				: ref.get());
-		if (parser != null) {
-			return parser;
-		}
+	private static CShaniDomParser newCShaniDomParser() {
 		final CShaniDomParser ret = new CShaniDomParser(true, false);
 		ret.setAutodoctype(false);
 		ret.setIgnoreDTD(true);
-		this.tlparser.set(new SoftReference(ret));
-		return ret;
-	}
-
-	private _ITextRenderer getITextRenderer() {
-		final Reference ref = (Reference) this.tlrenderer.get();
-		final _ITextRenderer renderer = (_ITextRenderer) (ref == null ? null
-				: ref.get());
-		if (renderer != null) {
-			return renderer;
-		}
-		final _ITextRenderer ret = new _ITextRenderer();
-		this.tlrenderer.set(new SoftReference(ret));
 		return ret;
 	}
 
-	private Tidy getTidy() {
-		final Reference ref = (Reference) this.tltidy.get();
-		final Tidy tidy = (Tidy) (ref == null ? null : ref.get());
-		if (tidy != null) {
-			return tidy;
-		}
+	private static Tidy newTidy() {
 		final Tidy ret = new Tidy();
 		ret.setInputEncoding("utf-8");
 		ret.setXHTML(true);
@@ -471,7 +859,6 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 					throws IOException {
 			}
 		}));
-		this.tltidy.set(new SoftReference(ret));
 		return ret;
 	}
 	
@@ -538,6 +925,275 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 		return href;
 	}
 
+	/**
+	 * Start fetching the linked stylesheets, their imports and the images of
+	 * a document.
+	 * 
+	 * @param doc
+	 *            the document
+	 * @param urlForBase
+	 *            base url of the document
+	 * @param properties
+	 *            transform properties
+	 * 
+	 * @return the prefetcher, or null if the prefetch is disabled
+	 */
+	private CResourcePrefetcher prefetch(final Document doc,
+			String urlForBase, final Map properties) {
+		final int threads = CResourcePrefetcher.getThreads(properties);
+		if (threads == 0) {
+			return null;
+		}
+		final NodeList bases = doc.getElementsByTagName("base");
+		if (bases.getLength() > 0) {
+			final String href = ((Element) bases.item(0)).getAttribute("href");
+			if ((href != null) && !"".equals(href)) {
+				urlForBase = href;
+			}
+		}
+		final CResourcePrefetcher prefetcher = new CResourcePrefetcher(
+				properties, Thread.currentThread().getContextClassLoader());
+		final Node head = doc.getDocumentElement()
+				.getElementsByTagName("head").item(0);
+		if (head != null) {
+			for (Node n = head.getFirstChild(); n != null; n = n
+					.getNextSibling()) {
+				if ((n.getNodeType() == Node.ELEMENT_NODE)
+						&& "link".equals(n.getNodeName())
+						&& "stylesheet".equals(((Element) n)
+								.getAttribute("rel"))) {
+					prefetcher.addStyleSheet(this.normalizeLink(urlForBase,
+							((Element) n).getAttribute("href")));
+				}
+			}
+		}
+		final NodeList images = doc.getElementsByTagName("img");
+		for (int i = 0; i < images.getLength(); i++) {
+			final String src = ((Element) images.item(i)).getAttribute("src");
+			if ((src == null) || "".equals(src)) {
+				continue;
+			}
+			try {
+				// resolved as the renderer does, the prefetched resources
+				// are looked up by resolved url.
+				final String url = urlForBase == null ? new URL(src)
+						.toString() : new URL(new URL(urlForBase), src)
+						.toString();
+				if (!CImageCache.isEnabled(properties)
+						|| !CImageCache.contains(url)) {
+					prefetcher.addResource(url);
+				}
+			} catch (final MalformedURLException ignore) {
+			}
+		}
+		prefetcher.start(threads);
+		return prefetcher;
+	}
+
+	/**
+	 * Return the threads rendering the segments with the calling thread.
+	 * There are at most as many threads as pooled renderers, a segment
+	 * which finds no free thread is left to the other threads of its
+	 * document.
+	 * 
+	 * @return the rendering threads
+	 */
+	private ExecutorService getRenderingPool() {
+		synchronized (this.poolLock) {
+			if (this.renderingPool == null) {
+				this.renderingPool = new ThreadPoolExecutor(0, Math.max(1,
+						CHtmlToPdfFlyingSaucerTransformer.rendererPool
+								.getMax()), 60L, TimeUnit.SECONDS,
+						new SynchronousQueue(), new ThreadFactory() {
+							private int count = 0;
+
+							public Thread newThread(final Runnable r) {
+								final Thread t = new Thread(r,
+										"YaHP segment renderer #"
+												+ (++this.count));
+								t.setDaemon(true);
+								return t;
+							}
+						}, new ThreadPoolExecutor.DiscardPolicy());
+			}
+			return this.renderingPool;
+		}
+	}
+
+	private static int getRenderingThreads(final Map properties) {
+		final Object threads = properties
+				.get(IHtmlToPdfTransformer.RENDERING_THREADS);
+		if (threads != null) {
+			try {
+				return Math.max(1, Integer.parseInt(threads.toString()
+						.trim()));
+			} catch (final NumberFormatException ignore) {
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Lay out one page-break segment with a pooled renderer, the renderer
+	 * must be given back to the pool once done with.
+	 * 
+	 * @param doc
+	 *            the segment to lay out
+	 * @param urlForBase
+	 *            base url of the segment
+	 * @param properties
+	 *            transform properties
+	 * @param prefetcher
+	 *            resources of the document, or null
+	 * 
+	 * @return the renderer, after layout
+	 */
+	private _ITextRenderer layoutSegment(final Document doc,
+			final String urlForBase, final Map properties,
+			final CResourcePrefetcher prefetcher) throws Exception {
+		final _ITextRenderer renderer = (_ITextRenderer) CHtmlToPdfFlyingSaucerTransformer.rendererPool
+				.borrow();
+		boolean laidOut = false;
+		try {
+			this.layoutSegment(renderer, doc, urlForBase, properties,
+					prefetcher);
+			laidOut = true;
+		} finally {
+			if (!laidOut) {
+				CHtmlToPdfFlyingSaucerTransformer.rendererPool
+						.discard(renderer);
+			}
+		}
+		return renderer;
+	}
+
+	private void layoutSegment(final _ITextRenderer renderer,
+			final Document doc, final String urlForBase,
+			final Map properties, final CResourcePrefetcher prefetcher)
+			throws Exception {
+		if (properties.get(IHtmlToPdfTransformer.FOP_TTF_FONT_PATH) != null) {
+			final File dir = new File((String) properties
+					.get(IHtmlToPdfTransformer.FOP_TTF_FONT_PATH));
+			if (dir.isDirectory()) {
+				CHtmlToPdfFlyingSaucerTransformer.registerTTF(dir, renderer);
+			}
+		}
+		renderer.getSharedContext().setBaseURL(urlForBase);
+		// the segment is handed to the renderer as is, it is
+		// already a parsed dom tree and needs no serialization.
+		doc.getDomConfig().setParameter("entities", Boolean.FALSE);
+		doc.normalizeDocument();
+		renderer.userAgent.prefetcher = prefetcher;
+		renderer.userAgent.properties = properties;
+		try {
+			renderer.setDocument(doc, urlForBase, new _NamespaceHandler(
+					urlForBase, properties, prefetcher));
+			renderer.layout();
+		} finally {
+			renderer.userAgent.prefetcher = null;
+		}
+	}
+
+	/**
+	 * Lay out and write one page-break segment to a pdf buffer, using a
+	 * pooled renderer.
+	 * 
+	 * @param doc
+	 *            the segment to render
+	 * @param urlForBase
+	 *            base url of the segment
+	 * @param properties
+	 *            transform properties
+	 * @param pdfs
+	 *            the rendered documents, indexed as the segments
+	 * @param index
+	 *            index of the segment
+	 * @param fields
+	 *            list to fill with the page number placeholders, or null
+	 * @param prefetcher
+	 *            resources of the document, or null
+	 */
+	private void renderSegment(final Document doc, final String urlForBase,
+			final Map properties, final CPdfBuffer[] pdfs, final int index,
+			final List fields, final CResourcePrefetcher prefetcher)
+			throws Exception {
+		final _ITextRenderer renderer = this.layoutSegment(doc, urlForBase,
+				properties, prefetcher);
+		boolean rendered = false;
+		try {
+			final CPdfBuffer pdf = new CPdfBuffer(properties);
+			pdfs[index] = pdf;
+			try {
+				renderer.createPDF(pdf, true);
+			} finally {
+				pdf.close();
+			}
+			if (fields != null) {
+				CHeaderFooterRenderer.collectFields(renderer, fields);
+			}
+			rendered = true;
+		} finally {
+			CHtmlToPdfFlyingSaucerTransformer.giveBack(renderer, rendered);
+		}
+	}
+
+	/**
+	 * Render the page-break segments. Unless RENDERING_THREADS is set, the
+	 * segments are rendered one after another on the calling thread,
+	 * otherwise the calling thread and pooled workers take the segments in
+	 * turn, each with its own renderer. The method returns once no worker
+	 * renders a segment of the document anymore, even if it failed or was
+	 * interrupted, so that all the pdf buffers are in pdfs.
+	 * 
+	 * @param docs
+	 *            the segments to render
+	 * @param urls
+	 *            base url of each segment
+	 * @param properties
+	 *            transform properties
+	 * @param pdfs
+	 *            the rendered documents, indexed as the segments
+	 * @param fields
+	 *            list to fill with the page number placeholders of the first
+	 *            segment, or null
+	 * @param prefetcher
+	 *            resources of the document, or null
+	 */
+	private void renderSegments(final DocumentAndSize[] docs,
+			final String[] urls, final Map properties,
+			final CPdfBuffer[] pdfs, final List fields,
+			final CResourcePrefetcher prefetcher) throws Exception {
+		final int threads = fields != null ? 1 : Math.min(docs.length,
+				CHtmlToPdfFlyingSaucerTransformer
+						.getRenderingThreads(properties));
+		if (threads <= 1) {
+			for (int i = 0; i < docs.length; i++) {
+				CHtmlToPdfFlyingSaucerTransformer.checkInterrupted();
+				this.renderSegment(docs[i].doc, urls[i], properties, pdfs, i,
+						i == 0 ? fields : null, prefetcher);
+			}
+			return;
+		}
+		final CSegmentWorker worker = new CSegmentWorker(docs, urls,
+				properties, pdfs, prefetcher, Thread.currentThread()
+						.getContextClassLoader());
+		final ExecutorService pool = this.getRenderingPool();
+		final List futures = new ArrayList();
+		for (int i = 1; i < threads; i++) {
+			futures.add(pool.submit(worker));
+		}
+		worker.run();
+		// all the segments are taken or one failed, the workers which did
+		// not start yet have nothing left to do. An interrupted conversion
+		// interrupts the others too.
+		final boolean interrupted = Thread.currentThread().isInterrupted();
+		for (int i = 0; i < futures.size(); i++) {
+			((Future) futures.get(i)).cancel(interrupted);
+		}
+		worker.waitForWorkers();
+		worker.throwError();
+	}
+
 	/**
 	 * Transform the html document in the inputstream to a pdf in the
 	 * outputstream
@@ -555,35 +1211,104 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 	 * @param out
 	 *            out stream to the pdf file
 	 */
-	public final void transform(final InputStream in, String urlForBase,
+	public final void transform(final InputStream in, final String urlForBase,
 			final PageSize size, final List hf, final Map properties,
 			final OutputStream out) throws CConvertException {
+		this.transform(in, urlForBase, size, hf, properties, out, null);
+	}
+
+	/**
+	 * Transform a header/footer html document in the inputstream to a pdf in
+	 * the outputstream, and collect the page number placeholders laid out on
+	 * its first page.
+	 * 
+	 * @param in
+	 *            html document stream
+	 * @param urlForBase
+	 *            base url of the document
+	 * @param size
+	 *            pdf document page size
+	 * @param properties
+	 *            transform properties
+	 * @param out
+	 *            out stream to the pdf file
+	 * @param fields
+	 *            list to fill with the page number placeholders, or null
+	 */
+	final void transform(final InputStream in, final String urlForBase,
+			final PageSize size, final Map properties, final OutputStream out,
+			final List fields) throws CConvertException {
+		this.transform(in, urlForBase, size, new ArrayList(), properties, out,
+				fields);
+	}
+
+	private void transform(final InputStream in, String urlForBase,
+			final PageSize size, final List hf, final Map properties,
+			final OutputStream out, final List fields)
+			throws CConvertException {
 		final List files = new ArrayList();
+		CResourcePrefetcher prefetcher = null;
 		try {
-			final Tidy tidy = this.getTidy();
-			final CShaniDomParser parser = this.getCShaniDomParser();
-			final _ITextRenderer renderer = this.getITextRenderer();
+			CCharBuffer source = new CCharBuffer(16384);
 			final Reader r = CXmlParser.getReader(in);
-			final StringBuffer s = new StringBuffer();
-			final char[] buffer = new char[2048];
-			int inb = -1;
-			while ((inb = r.read(buffer)) != -1) {
-				s.append(buffer, 0, inb);
-			}
-			r.close();
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			tidy.parse(
-					new ByteArrayInputStream(s.toString().getBytes("utf-8")),
-					bout);
-			final String result = CHtmlToPdfFlyingSaucerTransformer
-					.removeScript(new String(bout.toByteArray(), "utf-8"));
-			Document theDoc = parser
-					.parse(new InputStreamReader(new ByteArrayInputStream(
-							result.getBytes("utf-8")), "utf-8"));
-			if (theDoc.toString().length() == 0) {
-				theDoc = parser.parse(new StringReader(
-						CHtmlToPdfFlyingSaucerTransformer.removeScript(s
-								.toString())));
+			try {
+				final char[] buffer = new char[2048];
+				int inb = -1;
+				while ((inb = r.read(buffer)) != -1) {
+					source.write(buffer, 0, inb);
+				}
+			} finally {
+				r.close();
+			}
+			// tidy reads and writes characters, the parser reads the tidy
+			// output in place, no byte/string conversion is done.
+			final CCharBuffer tidied = new CCharBuffer(source.size() + 4096);
+			final Tidy tidy = (Tidy) CHtmlToPdfFlyingSaucerTransformer.tidyPool
+					.borrow();
+			boolean tidyOk = false;
+			try {
+				tidy.parse(source.getReader(), tidied);
+				tidyOk = true;
+			} finally {
+				if (tidyOk) {
+					CHtmlToPdfFlyingSaucerTransformer.tidyPool.release(tidy);
+				} else {
+					CHtmlToPdfFlyingSaucerTransformer.tidyPool.discard(tidy);
+				}
+			}
+			if (tidied.size() != 0) {
+				// the source is only needed when tidy fails, let it go
+				// before the tidy output is parsed.
+				source = null;
+			}
+			Document theDoc = null;
+			final CShaniDomParser parser = (CShaniDomParser) CHtmlToPdfFlyingSaucerTransformer.parserPool
+					.borrow();
+			boolean parserOk = false;
+			try {
+				if (tidied.size() == 0) {
+					// tidy failed, parse the source without its scripts.
+					final CCharBuffer stripped = new CCharBuffer(source
+							.size());
+					final Writer w = new CScriptFilterWriter(stripped);
+					source.writeTo(w);
+					w.close();
+					theDoc = parser.parse(stripped.getReader());
+				} else {
+					theDoc = parser.parse(tidied.getReader());
+				}
+				parserOk = true;
+			} finally {
+				if (parserOk) {
+					CHtmlToPdfFlyingSaucerTransformer.parserPool
+							.release(parser);
+				} else {
+					CHtmlToPdfFlyingSaucerTransformer.parserPool
+							.discard(parser);
+				}
+			}
+			if (tidied.size() != 0) {
+				CHtmlToPdfFlyingSaucerTransformer.removeScript(theDoc);
 			}
 			this.convertInputToVisibleHTML(theDoc);
 			this.convertComboboxToVisibleHTML(theDoc);
@@ -652,7 +1377,10 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 					body.appendChild(n);
 				}
 			}
+			CHtmlToPdfFlyingSaucerTransformer.checkInterrupted();
+			prefetcher = this.prefetch(theDoc, urlForBase, properties);
 			final DocumentAndSize docs[] = CDocumentCut.cut(theDoc, size);
+			final String urls[] = new String[docs.length];
 			for (int jj = 0; jj < docs.length; jj++) {
 				Document mydoc = docs[jj].doc;
 				body = mydoc.getDocumentElement().getElementsByTagName("body")
@@ -691,43 +1419,6 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 					base.setAttribute("href", urlForBase);
 				}
 				
-				final NodeList linknl = mydoc.getElementsByTagName("link");
-				for (int zi=0;zi<linknl.getLength();zi++) {
-					try {
-						Element e = (Element)linknl.item(zi);
-						if ("stylesheet".equals(e.getAttribute("rel"))) {
-							String url =  normalizeLink(urlForBase, e.getAttribute("href"));
-							InputStream iin = null;
-							try {
-								iin = new URL(url).openStream();
-								ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-								int iNbByteRead = -1;
-								byte bbuffer[] = new byte[16384];
-
-								while ((iNbByteRead = iin.read(bbuffer)) != -1) {
-									bOut.write(bbuffer, 0, iNbByteRead);
-								} // end while
-								String document = new String(bOut.toByteArray(), "utf-8");
-								CSSStyleSheet sheet = CCSSParser.parse(document, null,
-										null, url);
-								if (sheet != null) {
-									Element style = mydoc.createElement("style");
-									style.setAttribute("type", "text/css");
-									style.setTextContent(sheet.toString());
-									e.getParentNode().insertBefore(style, e);
-									e.getParentNode().removeChild(e);
-								}
-							} // end try
-							catch (final Throwable ignore) {
-							} // end catch
-							finally {
-								try{iin.close();}catch(Throwable ignore){}
-							}
-						}
-					}
-					catch (Throwable ignore){}
-				}
-				
 				final NumberFormat nf = NumberFormat.getInstance(Locale.US);
 				nf.setMaximumFractionDigits(2);
 				nf.setMinimumFractionDigits(0);
@@ -748,30 +1439,41 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 
 				);
 				head.appendChild(style);
-				if (properties.get(IHtmlToPdfTransformer.FOP_TTF_FONT_PATH) != null) {
-					final File dir = new File((String) properties
-							.get(IHtmlToPdfTransformer.FOP_TTF_FONT_PATH));
-					if (dir.isDirectory()) {
-						CHtmlToPdfFlyingSaucerTransformer.registerTTF(dir,
-								renderer);
-					}
-				}
 				((ADocument) mydoc).setInputEncoding("utf-8");
 				((ADocument) mydoc).setXmlEncoding("utf-8");
-				renderer.getSharedContext().setBaseURL(urlForBase);
-				mydoc = parser.parse(new StringReader(mydoc.toString()));
-				mydoc.getDomConfig().setParameter("entities", Boolean.FALSE );
-				mydoc.normalizeDocument();
-				renderer.setDocument(mydoc, urlForBase);
-				renderer.layout();
-				final java.io.File f = java.io.File.createTempFile("pdf",
-						"yahp");
-				files.add(f);
-				final OutputStream fout = new BufferedOutputStream(
-						new FileOutputStream(f));
-				renderer.createPDF(fout, true);
-				fout.flush();
-				fout.close();
+				urls[jj] = urlForBase;
+			}
+			if ((docs.length == 1)
+					&& CDocumentReconstructor.isCopyOnly(properties, hf)) {
+				// nothing to assemble nor to stamp, the renderer writes
+				// the document straight to the output.
+				final _ITextRenderer renderer = this.layoutSegment(
+						docs[0].doc, urls[0], properties, prefetcher);
+				boolean rendered = false;
+				try {
+					CDocumentReconstructor.writeDirect(renderer, properties,
+							out, urlForBase,
+							CHtmlToPdfFlyingSaucerTransformer.PRODUCER);
+					if (fields != null) {
+						CHeaderFooterRenderer.collectFields(renderer, fields);
+					}
+					rendered = true;
+				} finally {
+					CHtmlToPdfFlyingSaucerTransformer.giveBack(renderer,
+							rendered);
+				}
+				return;
+			}
+			final CPdfBuffer[] pdfs = new CPdfBuffer[docs.length];
+			try {
+				this.renderSegments(docs, urls, properties, pdfs, fields,
+						prefetcher);
+			} finally {
+				for (int i = 0; i < pdfs.length; i++) {
+					if (pdfs[i] != null) {
+						files.add(pdfs[i]);
+					}
+				}
 			}
 			final PageSize[] sizes = new PageSize[docs.length];
 			for (int i = 0; i < docs.length; i++) {
@@ -784,7 +1486,7 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 							properties,
 							out,
 							urlForBase,
-							"Flying Saucer Renderer (https://xhtmlrenderer.dev.java.net/)",
+							CHtmlToPdfFlyingSaucerTransformer.PRODUCER,
 							sizes, hf);
 		} catch (final Throwable e) {
 			CHtmlToPdfFlyingSaucerTransformer.log.error(e);
@@ -797,14 +1499,11 @@ public final class CHtmlToPdfFlyingSaucerTransformer implements
 			} catch (final Exception ignore) {
 			}
 			for (final Iterator it = files.iterator(); it.hasNext();) {
-				final java.io.File f = (File) it.next();
-
-				try {
-					f.delete();
-				} // end try
-				catch (final Exception ignore) {
-				}
+				((CPdfBuffer) it.next()).delete();
 			} // end for
+			if (prefetcher != null) {
+				prefetcher.cancel();
+			}
 		}
 	}
 
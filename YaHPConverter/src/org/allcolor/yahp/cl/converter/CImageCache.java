@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer;
+
+import com.lowagie.text.Image;
+
+/**
+ * Process wide cache of the decoded images, keyed by resolved url. The
+ * images are kept ready to embed and are never modified, the renderers work
+ * on copies. The least recently used images are evicted when the cache
+ * grows over IMAGE_CACHE_SIZE. The cache is disabled unless
+ * IMAGE_CACHE_SIZE is set.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CImageCache {
+	/**
+	 * A cached image.
+	 */
+	private static final class CEntry {
+		/** the decoded image */
+		private final Image image;
+
+		/** size of the decoded image in bytes */
+		private final long size;
+
+		/**
+		 * Creates a new CEntry object.
+		 *
+		 * @param image
+		 *            the decoded image
+		 * @param size
+		 *            size of the image
+		 */
+		private CEntry(final Image image, final long size) {
+			this.image = image;
+			this.size = size;
+		} // end CEntry()
+	} // end CEntry
+
+	/** default maximum size : 0, the cache is disabled */
+	private static final long DEFAULT_MAX_SIZE = 0;
+
+	/** cached entries, in access order */
+	private static final Map entries = new LinkedHashMap(16, 0.75f, true);
+
+	/** number of images evicted */
+	private static long evictions = 0;
+
+	/** number of requests served from the cache */
+	private static long hits = 0;
+
+	/** number of requests which decoded the image */
+	private static long misses = 0;
+
+	/** total size of the cached entries */
+	private static long size = 0;
+
+	/**
+	 * Remove all the images from the cache
+	 */
+	public static void clear() {
+		synchronized (CImageCache.entries) {
+			CImageCache.entries.clear();
+			CImageCache.size = 0;
+		} // end synchronized
+	} // end clear()
+
+	/**
+	 * Return true if the image of an url is cached, the statistics are not
+	 * updated
+	 *
+	 * @param url
+	 *            the resolved url of the image
+	 *
+	 * @return true if the image is cached
+	 */
+	static boolean contains(final String url) {
+		synchronized (CImageCache.entries) {
+			return CImageCache.entries.containsKey(url);
+		} // end synchronized
+	} // end contains()
+
+	/**
+	 * Return the number of images evicted to keep the cache under its
+	 * maximum size
+	 *
+	 * @return the number of evictions
+	 */
+	public static long getEvictions() {
+		synchronized (CImageCache.entries) {
+			return CImageCache.evictions;
+		} // end synchronized
+	} // end getEvictions()
+
+	/**
+	 * Return the number of requests served from the cache
+	 *
+	 * @return the number of hits
+	 */
+	public static long getHits() {
+		synchronized (CImageCache.entries) {
+			return CImageCache.hits;
+		} // end synchronized
+	} // end getHits()
+
+	/**
+	 * Return the cached image of an url
+	 *
+	 * @param url
+	 *            the resolved url of the image
+	 *
+	 * @return the image, which must not be modified, or null if it is not
+	 *         cached
+	 */
+	static Image getImage(final String url) {
+		synchronized (CImageCache.entries) {
+			final CEntry entry = (CEntry) CImageCache.entries.get(url);
+			if (entry == null) {
+				CImageCache.misses++;
+				return null;
+			} // end if
+			CImageCache.hits++;
+			return entry.image;
+		} // end synchronized
+	} // end getImage()
+
+	/**
+	 * Return the maximum size of the cache
+	 *
+	 * @param properties
+	 *            converter properties
+	 *
+	 * @return the maximum size in bytes
+	 */
+	private static long getMaxSize(final Map properties) {
+		final Object value = properties
+				.get(IHtmlToPdfTransformer.IMAGE_CACHE_SIZE);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.toString().trim());
+			} // end try
+			catch (final NumberFormatException ignore) {
+			} // end catch
+		} // end if
+		return CImageCache.DEFAULT_MAX_SIZE;
+	} // end getMaxSize()
+
+	/**
+	 * Return true if the images are cached
+	 *
+	 * @param properties
+	 *            converter properties
+	 *
+	 * @return true if the cache is enabled
+	 */
+	static boolean isEnabled(final Map properties) {
+		return CImageCache.getMaxSize(properties) > 0;
+	} // end isEnabled()
+
+	/**
+	 * Return the number of requests which decoded the image
+	 *
+	 * @return the number of misses
+	 */
+	public static long getMisses() {
+		synchronized (CImageCache.entries) {
+			return CImageCache.misses;
+		} // end synchronized
+	} // end getMisses()
+
+	/**
+	 * Return the total size in bytes of the cached images
+	 *
+	 * @return the size of the cache
+	 */
+	public static long getSize() {
+		synchronized (CImageCache.entries) {
+			return CImageCache.size;
+		} // end synchronized
+	} // end getSize()
+
+	/**
+	 * Put a decoded image in the cache
+	 *
+	 * @param url
+	 *            the resolved url of the image
+	 * @param image
+	 *            the decoded image, it must not be modified afterwards
+	 * @param properties
+	 *            converter properties
+	 */
+	static void putImage(final String url, final Image image,
+			final Map properties) {
+		final long maxSize = CImageCache.getMaxSize(properties);
+		final long imageSize = CImageCache.sizeOf(image);
+		if (imageSize > maxSize) {
+			return;
+		} // end if
+		synchronized (CImageCache.entries) {
+			final CEntry old = (CEntry) CImageCache.entries.put(url,
+					new CEntry(image, imageSize));
+			if (old != null) {
+				CImageCache.size -= old.size;
+			} // end if
+			CImageCache.size += imageSize;
+			for (final Iterator it = CImageCache.entries.values().iterator(); it
+					.hasNext()
+					&& (CImageCache.size > maxSize);) {
+				final CEntry eldest = (CEntry) it.next();
+				it.remove();
+				CImageCache.size -= eldest.size;
+				CImageCache.evictions++;
+			} // end for
+		} // end synchronized
+	} // end putImage()
+
+	/**
+	 * Return the size in bytes held by a decoded image
+	 *
+	 * @param image
+	 *            the image
+	 *
+	 * @return the size of the image and of its mask
+	 */
+	private static long sizeOf(final Image image) {
+		long imageSize = 0;
+		if (image.getRawData() != null) {
+			imageSize = image.getRawData().length;
+		} // end if
+		else {
+			imageSize = (long) (image.getPlainWidth() * image.getPlainHeight() * 4);
+		} // end else
+		if (image.getImageMask() != null) {
+			imageSize += CImageCache.sizeOf(image.getImageMask());
+		} // end if
+		return imageSize;
+	} // end sizeOf()
+
+	/**
+	 * Creates a new CImageCache object.
+	 */
+	private CImageCache() {
+	} // end CImageCache()
+} // end CImageCache
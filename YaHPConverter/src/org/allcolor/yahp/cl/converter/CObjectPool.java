@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of heavy objects. At most max objects exist at once, a
+ * borrower waits when all of them are in use. The pool is filled up to min
+ * objects in the background when it is configured, the objects idle for
+ * longer than the idle timeout are evicted down to min objects.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public abstract class CObjectPool {
+	/**
+	 * An idle object.
+	 */
+	private static final class CIdle {
+		/** the object */
+		private final Object object;
+
+		/** time the object was released */
+		private final long since;
+
+		/**
+		 * Creates a new CIdle object.
+		 *
+		 * @param object
+		 *            the object
+		 * @param since
+		 *            time the object was released
+		 */
+		private CIdle(final Object object, final long since) {
+			this.object = object;
+			this.since = since;
+		} // end CIdle()
+	} // end CIdle
+
+	/** delay in milliseconds between two evictions of the idle objects */
+	private static final long EVICTION_INTERVAL = 5000;
+
+	/** logger */
+	private static final Logger log = Logger.getLogger(CObjectPool.class);
+
+	/** timer evicting the idle objects of all the pools */
+	private static final Timer timer = new Timer(true);
+
+	/** number of borrowed objects */
+	private int borrowed = 0;
+
+	/** number of borrows */
+	private long borrows = 0;
+
+	/** number of existing objects, borrowed, idle or being created */
+	private int created = 0;
+
+	/** number of evicted objects */
+	private long evictions = 0;
+
+	/** idle objects, the most recently released first */
+	private final LinkedList idle = new LinkedList();
+
+	/** idle timeout in milliseconds */
+	private long idleTimeout = 60000;
+
+	/** maximum number of objects */
+	private int max = Integer.MAX_VALUE;
+
+	/** longest time in milliseconds a borrower waited */
+	private long maxWaitTime = 0;
+
+	/** minimum number of objects */
+	private int min = 0;
+
+	/** name of the pool */
+	private final String name;
+
+	/** total time in milliseconds the borrowers waited */
+	private long totalWaitTime = 0;
+
+	/** number of borrows which waited for an object */
+	private long waits = 0;
+
+	/** true while the pool is being filled */
+	private boolean warming = false;
+
+	/**
+	 * Creates a new CObjectPool object.
+	 *
+	 * @param name
+	 *            name of the pool
+	 */
+	protected CObjectPool(final String name) {
+		this.name = name;
+		CObjectPool.timer.schedule(new TimerTask() {
+			public void run() {
+				CObjectPool.this.evict();
+			} // end run()
+		}, CObjectPool.EVICTION_INTERVAL, CObjectPool.EVICTION_INTERVAL);
+	} // end CObjectPool()
+
+	/**
+	 * Borrow an object, wait for one if max objects are in use
+	 *
+	 * @return the object, to give back with release() or discard()
+	 *
+	 * @throws Exception
+	 *             if the object cannot be created or the wait is interrupted
+	 */
+	public final Object borrow() throws Exception {
+		synchronized (this) {
+			this.borrows++;
+			if (this.idle.isEmpty() && (this.created >= this.max)) {
+				final long start = System.currentTimeMillis();
+				while (this.idle.isEmpty() && (this.created >= this.max)) {
+					this.wait();
+				} // end while
+				final long wait = System.currentTimeMillis() - start;
+				this.waits++;
+				this.totalWaitTime += wait;
+				this.maxWaitTime = Math.max(this.maxWaitTime, wait);
+			} // end if
+			this.borrowed++;
+			if (!this.idle.isEmpty()) {
+				return ((CIdle) this.idle.removeFirst()).object;
+			} // end if
+			this.created++;
+		} // end synchronized
+		try {
+			return this.create();
+		} // end try
+		catch (final Exception e) {
+			this.discard(null);
+			throw e;
+		} // end catch
+		catch (final Error e) {
+			this.discard(null);
+			throw e;
+		} // end catch
+	} // end borrow()
+
+	/**
+	 * Set the bounds of the pool and fill it up to min objects in the
+	 * background
+	 *
+	 * @param min
+	 *            minimum number of objects
+	 * @param max
+	 *            maximum number of objects
+	 * @param idleTimeout
+	 *            time in milliseconds after which an idle object is evicted
+	 */
+	public final void configure(final int min, final int max,
+			final long idleTimeout) {
+		synchronized (this) {
+			this.max = Math.max(1, max);
+			this.min = Math.max(0, Math.min(min, this.max));
+			this.idleTimeout = idleTimeout;
+			while (!this.idle.isEmpty() && (this.created > this.max)) {
+				this.idle.removeLast();
+				this.created--;
+				this.evictions++;
+			} // end while
+			this.notifyAll();
+			if (this.warming || (this.created >= this.min)) {
+				return;
+			} // end if
+			this.warming = true;
+		} // end synchronized
+		final Thread t = new Thread("YaHP " + this.name + " pool warm-up") {
+			public void run() {
+				CObjectPool.this.warmUp();
+			} // end run()
+		};
+		t.setContextClassLoader(Thread.currentThread().getContextClassLoader());
+		t.setDaemon(true);
+		t.start();
+	} // end configure()
+
+	/**
+	 * Create a new object
+	 *
+	 * @return the new object
+	 *
+	 * @throws Exception
+	 *             if the object cannot be created
+	 */
+	protected abstract Object create() throws Exception;
+
+	/**
+	 * Give back a borrowed object which must not be reused
+	 *
+	 * @param object
+	 *            the object
+	 */
+	public final synchronized void discard(final Object object) {
+		this.borrowed--;
+		this.created--;
+		this.notifyAll();
+	} // end discard()
+
+	/**
+	 * Evict the objects idle for longer than the idle timeout, down to min
+	 * objects
+	 */
+	private synchronized void evict() {
+		final long now = System.currentTimeMillis();
+		while (!this.idle.isEmpty() && (this.created > this.min)
+				&& (now - ((CIdle) this.idle.getLast()).since >= this.idleTimeout)) {
+			this.idle.removeLast();
+			this.created--;
+			this.evictions++;
+		} // end while
+	} // end evict()
+
+	/**
+	 * Return the number of borrowed objects
+	 *
+	 * @return the number of objects in use
+	 */
+	public final synchronized int getBorrowed() {
+		return this.borrowed;
+	} // end getBorrowed()
+
+	/**
+	 * Return the number of borrows
+	 *
+	 * @return the number of borrows
+	 */
+	public final synchronized long getBorrows() {
+		return this.borrows;
+	} // end getBorrows()
+
+	/**
+	 * Return the number of idle objects evicted
+	 *
+	 * @return the number of evictions
+	 */
+	public final synchronized long getEvictions() {
+		return this.evictions;
+	} // end getEvictions()
+
+	/**
+	 * Return the number of idle objects
+	 *
+	 * @return the number of idle objects
+	 */
+	public final synchronized int getIdle() {
+		return this.idle.size();
+	} // end getIdle()
+
+	/**
+	 * Return the maximum number of objects
+	 *
+	 * @return the maximum size of the pool
+	 */
+	public final synchronized int getMax() {
+		return this.max;
+	} // end getMax()
+
+	/**
+	 * Return the longest time a borrower waited for an object
+	 *
+	 * @return the time in milliseconds
+	 */
+	public final synchronized long getMaxWaitTime() {
+		return this.maxWaitTime;
+	} // end getMaxWaitTime()
+
+	/**
+	 * Return the minimum number of objects
+	 *
+	 * @return the minimum size of the pool
+	 */
+	public final synchronized int getMin() {
+		return this.min;
+	} // end getMin()
+
+	/**
+	 * Return the number of existing objects, borrowed, idle or being created
+	 *
+	 * @return the size of the pool
+	 */
+	public final synchronized int getSize() {
+		return this.created;
+	} // end getSize()
+
+	/**
+	 * Return the total time the borrowers waited for an object
+	 *
+	 * @return the time in milliseconds
+	 */
+	public final synchronized long getTotalWaitTime() {
+		return this.totalWaitTime;
+	} // end getTotalWaitTime()
+
+	/**
+	 * Return the number of borrows which waited for an object
+	 *
+	 * @return the number of waits
+	 */
+	public final synchronized long getWaits() {
+		return this.waits;
+	} // end getWaits()
+
+	/**
+	 * Give back a borrowed object
+	 *
+	 * @param object
+	 *            the object
+	 */
+	public final synchronized void release(final Object object) {
+		this.borrowed--;
+		if (this.created > this.max) {
+			// the pool was shrunk while the object was in use.
+			this.created--;
+		} // end if
+		else {
+			this.idle.addFirst(new CIdle(object, System.currentTimeMillis()));
+		} // end else
+		this.notifyAll();
+	} // end release()
+
+	/**
+	 * Create objects until the pool holds min objects
+	 */
+	private void warmUp() {
+		try {
+			while (true) {
+				synchronized (this) {
+					if (this.created >= this.min) {
+						return;
+					} // end if
+					this.created++;
+				} // end synchronized
+				Object object = null;
+				try {
+					object = this.create();
+				} // end try
+				catch (final Throwable e) {
+					CObjectPool.log.warn("Cannot warm up the " + this.name
+							+ " pool", e);
+				} // end catch
+				synchronized (this) {
+					if (object == null) {
+						this.created--;
+						this.notifyAll();
+						return;
+					} // end if
+					this.idle.addLast(new CIdle(object, System
+							.currentTimeMillis()));
+					this.notifyAll();
+				} // end synchronized
+			} // end while
+		} // end try
+		finally {
+			synchronized (this) {
+				this.warming = false;
+			} // end synchronized
+		} // end finally
+	} // end warmUp()
+} // end CObjectPool
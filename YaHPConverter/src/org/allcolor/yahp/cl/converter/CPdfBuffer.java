@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+
+/**
+ * Holds an intermediate pdf document. The document is kept in memory until
+ * it grows over the configured threshold, it is then spilled to a temporary
+ * file.
+ * 
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+final class CPdfBuffer extends OutputStream {
+	/** default memory threshold : 4MB */
+	private static final int DEFAULT_THRESHOLD = 4 * 1024 * 1024;
+
+	/** initial size of a buffer */
+	private static final int INITIAL_SIZE = 64 * 1024;
+
+	/** maximum number of buffers kept for reuse */
+	private static final int MAX_POOLED = 8;
+
+	/** released buffers, kept for reuse */
+	private static final LinkedList pool = new LinkedList();
+
+	/**
+	 * Take a buffer from the pool or allocate a new one
+	 * 
+	 * @return a buffer
+	 */
+	private static byte[] borrowBuffer() {
+		synchronized (CPdfBuffer.pool) {
+			if (!CPdfBuffer.pool.isEmpty()) {
+				return (byte[]) CPdfBuffer.pool.removeFirst();
+			} // end if
+		} // end synchronized
+		return new byte[CPdfBuffer.INITIAL_SIZE];
+	} // end borrowBuffer()
+
+	/**
+	 * Give a buffer back to the pool, only buffers of the initial size are
+	 * kept, grown ones are left to the garbage collector.
+	 * 
+	 * @param buffer
+	 *            the buffer to release
+	 */
+	private static void releaseBuffer(final byte[] buffer) {
+		if (buffer.length != CPdfBuffer.INITIAL_SIZE) {
+			return;
+		} // end if
+		synchronized (CPdfBuffer.pool) {
+			if (CPdfBuffer.pool.size() < CPdfBuffer.MAX_POOLED) {
+				CPdfBuffer.pool.addFirst(buffer);
+			} // end if
+		} // end synchronized
+	} // end releaseBuffer()
+
+	/** working buffer while in memory, it holds the document once closed */
+	private byte[] buf = CPdfBuffer.borrowBuffer();
+
+	/** closed ? */
+	private boolean closed = false;
+
+	/** number of bytes in the working buffer */
+	private int count = 0;
+
+	/** the spill file */
+	private File file = null;
+
+	/** stream to the spill file */
+	private OutputStream fileOut = null;
+
+	/** true once the working buffer is handed to a reader */
+	private boolean shared = false;
+
+	/** directory of the spill file, null for the default temp directory */
+	private final File tempDir;
+
+	/** maximum size kept in memory */
+	private final int threshold;
+
+	/**
+	 * Creates a new CPdfBuffer object, configured with PDF_MEMORY_THRESHOLD
+	 * and TEMP_DIRECTORY.
+	 * 
+	 * @param properties
+	 *            the converter properties
+	 */
+	CPdfBuffer(final Map properties) {
+		int threshold = CPdfBuffer.DEFAULT_THRESHOLD;
+		final Object sthreshold = properties
+				.get(IHtmlToPdfTransformer.PDF_MEMORY_THRESHOLD);
+		if (sthreshold != null) {
+			try {
+				threshold = Integer.parseInt(sthreshold.toString().trim());
+			} // end try
+			catch (final NumberFormatException ignore) {
+			} // end catch
+		} // end if
+		this.threshold = Math.max(0, threshold);
+		final Object dir = properties
+				.get(IHtmlToPdfTransformer.TEMP_DIRECTORY);
+		this.tempDir = (dir != null) ? new File(dir.toString()) : null;
+	} // end CPdfBuffer()
+
+	/**
+	 * Close the buffer, the document can then be read.
+	 * 
+	 * @throws IOException
+	 *             if the spill file can't be written
+	 */
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		} // end if
+		this.closed = true;
+		if (this.fileOut != null) {
+			this.fileOut.close();
+			this.fileOut = null;
+		} // end if
+	} // end close()
+
+	/**
+	 * Release the memory and delete the spill file if any
+	 */
+	void delete() {
+		try {
+			this.close();
+		} // end try
+		catch (final IOException ignore) {
+		} // end catch
+		if ((this.buf != null) && !this.shared) {
+			CPdfBuffer.releaseBuffer(this.buf);
+		} // end if
+		this.buf = null;
+		if (this.file != null) {
+			try {
+				this.file.delete();
+			} // end try
+			catch (final Exception ignore) {
+			} // end catch
+			this.file = null;
+		} // end if
+	} // end delete()
+
+	/**
+	 * Flush the spill file stream if any
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		if (this.fileOut != null) {
+			this.fileOut.flush();
+		} // end if
+	} // end flush()
+
+	/**
+	 * Return the closed in memory document. iText reads a byte array up to
+	 * its end, so the working buffer is handed out as is when it is full and
+	 * trimmed once otherwise.
+	 * 
+	 * @return the document bytes
+	 */
+	private byte[] getBytes() {
+		if (this.buf.length != this.count) {
+			final byte[] trimmed = new byte[this.count];
+			System.arraycopy(this.buf, 0, trimmed, 0, this.count);
+			CPdfBuffer.releaseBuffer(this.buf);
+			this.buf = trimmed;
+		} // end if
+		this.shared = true;
+		return this.buf;
+	} // end getBytes()
+
+	/**
+	 * Return the number of pages of the closed document, only the page tree
+	 * is read.
+	 * 
+	 * @return the number of pages
+	 * 
+	 * @throws IOException
+	 *             if the document can't be read
+	 */
+	int getPageCount() throws IOException {
+		this.close();
+		final RandomAccessFileOrArray in = (this.file != null) ? new RandomAccessFileOrArray(
+				this.file.getAbsolutePath(), false, true)
+				: new RandomAccessFileOrArray(this.getBytes());
+		final PdfReader reader = new PdfReader(in, null);
+		try {
+			return reader.getNumberOfPages();
+		} // end try
+		finally {
+			reader.close();
+		} // end finally
+	} // end getPageCount()
+
+	/**
+	 * Open a reader on the closed document
+	 * 
+	 * @param password
+	 *            the owner password or null
+	 * 
+	 * @return a reader on the document
+	 * 
+	 * @throws IOException
+	 *             if the document can't be read
+	 */
+	PdfReader getReader(final byte[] password) throws IOException {
+		this.close();
+		if (this.file != null) {
+			return new PdfReader(this.file.getAbsolutePath(), password);
+		} // end if
+		return new PdfReader(this.getBytes(), password);
+	} // end getReader()
+
+	/**
+	 * Move the buffered bytes to a temporary file
+	 * 
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	private void spill() throws IOException {
+		this.file = File.createTempFile("yahp", "pdf", this.tempDir);
+		this.fileOut = new BufferedOutputStream(
+				new FileOutputStream(this.file));
+		this.fileOut.write(this.buf, 0, this.count);
+		CPdfBuffer.releaseBuffer(this.buf);
+		this.buf = null;
+		this.count = 0;
+	} // end spill()
+
+	/**
+	 * Write a portion of an array of bytes
+	 * 
+	 * @param b
+	 *            the bytes to write
+	 * @param off
+	 *            offset from which to start writing
+	 * @param len
+	 *            number of bytes to write
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (this.closed) {
+			throw new IOException("Stream closed.");
+		} // end if
+		if ((this.fileOut == null) && (this.count + len > this.threshold)) {
+			this.spill();
+		} // end if
+		if (this.fileOut != null) {
+			this.fileOut.write(b, off, len);
+			return;
+		} // end if
+		if (this.count + len > this.buf.length) {
+			final byte[] nbuf = new byte[Math.min(this.threshold, Math.max(
+					this.buf.length * 2, this.count + len))];
+			System.arraycopy(this.buf, 0, nbuf, 0, this.count);
+			this.buf = nbuf;
+		} // end if
+		System.arraycopy(b, off, this.buf, this.count, len);
+		this.count += len;
+	} // end write()
+
+	/**
+	 * Write a single byte
+	 * 
+	 * @param b
+	 *            the byte to write
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(final int b) throws IOException {
+		if ((this.buf != null) && !this.closed
+				&& (this.count < this.buf.length)
+				&& (this.count < this.threshold)) {
+			this.buf[this.count++] = (byte) b;
+			return;
+		} // end if
+		this.write(new byte[] { (byte) b }, 0, 1);
+	} // end write()
+} // end CPdfBuffer
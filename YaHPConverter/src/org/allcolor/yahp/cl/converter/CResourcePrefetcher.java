@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
+import org.xhtmlrenderer.css.sheet.StylesheetInfo;
+
+/**
+ * Fetches the external resources of a document concurrently while it is
+ * prepared for rendering. The renderer then reads the resources from the
+ * prefetcher, a resource which is not fetched yet is fetched by the reader
+ * itself, a resource which cannot be fetched is left to the renderer.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+final class CResourcePrefetcher implements Runnable {
+	/** default number of fetching threads */
+	private static final int DEFAULT_THREADS = 4;
+
+	/** maximum number of threads shared by the prefetchers */
+	private static final int MAX_THREADS = Math.max(
+			CResourcePrefetcher.DEFAULT_THREADS, 2 * Runtime.getRuntime()
+					.availableProcessors());
+
+	/** maximum number of fetching runs waiting for a thread */
+	private static final int MAX_QUEUED = 4 * CResourcePrefetcher.MAX_THREADS;
+
+	/** threads shared by the prefetchers */
+	private static ThreadPoolExecutor pool = null;
+
+	/** lock on the pool */
+	private static final Object poolLock = new Object();
+
+	/**
+	 * Return the pool shared by the prefetchers. It holds at most
+	 * MAX_THREADS threads and MAX_QUEUED waiting runs, a run which does not
+	 * fit is dropped: its tasks are then fetched by the renderer threads
+	 * reading them.
+	 *
+	 * @return the pool
+	 */
+	private static ThreadPoolExecutor getPool() {
+		synchronized (CResourcePrefetcher.poolLock) {
+			if (CResourcePrefetcher.pool == null) {
+				CResourcePrefetcher.pool = new ThreadPoolExecutor(
+						CResourcePrefetcher.MAX_THREADS,
+						CResourcePrefetcher.MAX_THREADS, 0L,
+						TimeUnit.MILLISECONDS, new ArrayBlockingQueue(
+								CResourcePrefetcher.MAX_QUEUED),
+						new ThreadFactory() {
+							private int count = 0;
+
+							public Thread newThread(final Runnable r) {
+								final Thread t = new Thread(r,
+										"YaHP resource prefetcher #"
+												+ (++this.count));
+								t.setDaemon(true);
+								return t;
+							} // end newThread()
+						}, new ThreadPoolExecutor.DiscardPolicy());
+			} // end if
+			return CResourcePrefetcher.pool;
+		} // end synchronized
+	} // end getPool()
+
+	/**
+	 * Return the number of fetching threads
+	 *
+	 * @param properties
+	 *            converter properties
+	 *
+	 * @return the number of threads, 0 if the prefetch is disabled
+	 */
+	static int getThreads(final Map properties) {
+		final Object threads = properties
+				.get(IHtmlToPdfTransformer.PREFETCH_THREADS);
+		if (threads != null) {
+			try {
+				return Math.max(0, Integer.parseInt(threads.toString().trim()));
+			} // end try
+			catch (final NumberFormatException ignore) {
+			} // end catch
+		} // end if
+		return CResourcePrefetcher.DEFAULT_THREADS;
+	} // end getThreads()
+
+	/** true when the prefetch is cancelled */
+	private boolean cancelled = false;
+
+	/** context classloader of the fetching threads */
+	private final ClassLoader loader;
+
+	/** index of the next task to run */
+	private int next = 0;
+
+	/** converter properties */
+	private final Map properties;
+
+	/** resource tasks by url */
+	private final Map resources = new HashMap();
+
+	/** stylesheet tasks by url */
+	private final Map stylesheets = new HashMap();
+
+	/** all the tasks, in submission order */
+	private final List tasks = new ArrayList();
+
+	/**
+	 * Creates a new CResourcePrefetcher object.
+	 *
+	 * @param properties
+	 *            converter properties
+	 * @param loader
+	 *            context classloader of the fetching threads
+	 */
+	CResourcePrefetcher(final Map properties, final ClassLoader loader) {
+		this.properties = properties;
+		this.loader = loader;
+	} // end CResourcePrefetcher()
+
+	/**
+	 * Add a resource to fetch
+	 *
+	 * @param url
+	 *            the resolved url of the resource
+	 */
+	synchronized void addResource(final String url) {
+		if (this.cancelled || this.resources.containsKey(url)) {
+			return;
+		} // end if
+		final FutureTask task = new FutureTask(new Callable() {
+			public Object call() throws Exception {
+				return CResourcePrefetcher.read(url);
+			} // end call()
+		});
+		this.resources.put(url, task);
+		this.tasks.add(task);
+	} // end addResource()
+
+	/**
+	 * Add a linked stylesheet to fetch, its imports are fetched once it is
+	 * parsed.
+	 *
+	 * @param url
+	 *            the url of the stylesheet
+	 */
+	synchronized void addStyleSheet(final String url) {
+		if (this.cancelled || this.stylesheets.containsKey(url)) {
+			return;
+		} // end if
+		final FutureTask task = new FutureTask(new Callable() {
+			public Object call() throws Exception {
+				final Stylesheet sheet = CStyleSheetCache.getStyleSheet(url,
+						CResourcePrefetcher.this.properties);
+				if (sheet != null) {
+					for (final Iterator it = sheet.getImportRules().iterator(); it
+							.hasNext();) {
+						final StylesheetInfo info = (StylesheetInfo) it.next();
+						if (info.getUri() != null) {
+							CResourcePrefetcher.this.addResource(info.getUri());
+						} // end if
+					} // end for
+				} // end if
+				return sheet;
+			} // end call()
+		});
+		this.stylesheets.put(url, task);
+		this.tasks.add(task);
+	} // end addStyleSheet()
+
+	/**
+	 * Cancel the tasks which are not started and release the fetched
+	 * resources
+	 */
+	synchronized void cancel() {
+		this.cancelled = true;
+		for (final Iterator it = this.tasks.iterator(); it.hasNext();) {
+			((FutureTask) it.next()).cancel(false);
+		} // end for
+		this.tasks.clear();
+		this.resources.clear();
+		this.stylesheets.clear();
+	} // end cancel()
+
+	/**
+	 * Return the result of a task, run it on the calling thread if no
+	 * fetching thread took it yet
+	 *
+	 * @param task
+	 *            the task or null
+	 *
+	 * @return the result or null if the task failed
+	 */
+	private static Object get(final FutureTask task) {
+		if (task == null) {
+			return null;
+		} // end if
+		task.run();
+		try {
+			return task.get();
+		} // end try
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} // end catch
+		catch (final Exception e) {
+			return null;
+		} // end catch
+	} // end get()
+
+	/**
+	 * Return the content of a resource
+	 *
+	 * @param url
+	 *            the resolved url of the resource
+	 *
+	 * @return the content or null if the resource was not prefetched
+	 */
+	byte[] getResource(final String url) {
+		FutureTask task = null;
+		synchronized (this) {
+			task = (FutureTask) this.resources.get(url);
+		} // end synchronized
+		return (byte[]) CResourcePrefetcher.get(task);
+	} // end getResource()
+
+	/**
+	 * Return a linked stylesheet
+	 *
+	 * @param url
+	 *            the url of the stylesheet
+	 *
+	 * @return the stylesheet or null if it was not prefetched
+	 */
+	Stylesheet getStyleSheet(final String url) {
+		FutureTask task = null;
+		synchronized (this) {
+			task = (FutureTask) this.stylesheets.get(url);
+		} // end synchronized
+		return (Stylesheet) CResourcePrefetcher.get(task);
+	} // end getStyleSheet()
+
+	/**
+	 * Return the next task to run
+	 *
+	 * @return the task or null if there is none left
+	 */
+	private synchronized FutureTask nextTask() {
+		if (this.cancelled || (this.next >= this.tasks.size())) {
+			return null;
+		} // end if
+		return (FutureTask) this.tasks.get(this.next++);
+	} // end nextTask()
+
+	/**
+	 * Read the content of an url
+	 *
+	 * @param url
+	 *            the url
+	 *
+	 * @return the content
+	 *
+	 * @throws Exception
+	 *             if the url cannot be read
+	 */
+	private static byte[] read(final String url) throws Exception {
+		final InputStream in = new URL(url).openStream();
+		try {
+			final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+			int iNbByteRead = -1;
+			final byte bbuffer[] = new byte[16384];
+
+			while ((iNbByteRead = in.read(bbuffer)) != -1) {
+				bOut.write(bbuffer, 0, iNbByteRead);
+			} // end while
+			return bOut.toByteArray();
+		} // end try
+		finally {
+			try {
+				in.close();
+			} // end try
+			catch (final Exception ignore) {
+			} // end catch
+		} // end finally
+	} // end read()
+
+	/**
+	 * Run the tasks until none is left
+	 */
+	public void run() {
+		final Thread current = Thread.currentThread();
+		final ClassLoader cx = current.getContextClassLoader();
+		current.setContextClassLoader(this.loader);
+		try {
+			FutureTask task = null;
+			while ((task = this.nextTask()) != null) {
+				task.run();
+			} // end while
+		} // end try
+		finally {
+			current.setContextClassLoader(cx);
+		} // end finally
+	} // end run()
+
+	/**
+	 * Start the fetching threads, nothing is started if there is nothing to
+	 * fetch
+	 *
+	 * @param threads
+	 *            number of threads
+	 */
+	void start(final int threads) {
+		synchronized (this) {
+			if (this.tasks.isEmpty()) {
+				return;
+			} // end if
+		} // end synchronized
+		final ThreadPoolExecutor executor = CResourcePrefetcher.getPool();
+		for (int i = 0; i < threads; i++) {
+			executor.execute(this);
+		} // end for
+	} // end start()
+} // end CResourcePrefetcher
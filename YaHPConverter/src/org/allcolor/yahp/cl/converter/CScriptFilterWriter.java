@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer which strips the &lt;script&gt; blocks of the html written to it.
+ * The text is filtered in a single pass, only the start of a possible tag is
+ * held back. An unterminated script block is dropped up to the end of the
+ * stream.
+ * 
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+final class CScriptFilterWriter extends FilterWriter {
+	/** script end tag (lowercase) */
+	private static final char[] END = "</script>".toCharArray();
+
+	/** script start tag (lowercase) */
+	private static final char[] START = "<script".toCharArray();
+
+	/** true if inside a script block */
+	private boolean inScript = false;
+
+	/** number of chars of the start or end tag matched so far */
+	private int matched = 0;
+
+	/** chars held back while matching the start tag */
+	private final char[] pending = new char[CScriptFilterWriter.START.length];
+
+	/**
+	 * Creates a new CScriptFilterWriter object.
+	 * 
+	 * @param out
+	 *            the writer to write the filtered html into
+	 */
+	CScriptFilterWriter(final Writer out) {
+		super(out);
+	} // end CScriptFilterWriter()
+
+	/**
+	 * Write the held back chars and close the underlying writer
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void close() throws IOException {
+		if (!this.inScript && (this.matched > 0)) {
+			this.out.write(this.pending, 0, this.matched);
+			this.matched = 0;
+		} // end if
+		super.close();
+	} // end close()
+
+	/**
+	 * Write a portion of an array of characters
+	 * 
+	 * @param cbuf
+	 *            the chars to write
+	 * @param off
+	 *            offset from which to start writing
+	 * @param len
+	 *            number of chars to write
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(final char[] cbuf, final int off, final int len)
+			throws IOException {
+		for (int i = off; i < off + len; i++) {
+			this.write(cbuf[i]);
+		} // end for
+	} // end write()
+
+	/**
+	 * Write a single character
+	 * 
+	 * @param c
+	 *            the char to write
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(final int c) throws IOException {
+		final char lc = Character.toLowerCase((char) c);
+		if (this.inScript) {
+			if (lc == CScriptFilterWriter.END[this.matched]) {
+				this.matched++;
+				if (this.matched == CScriptFilterWriter.END.length) {
+					this.inScript = false;
+					this.matched = 0;
+				} // end if
+			} // end if
+			else {
+				this.matched = (lc == '<') ? 1 : 0;
+			} // end else
+			return;
+		} // end if
+		if (lc == CScriptFilterWriter.START[this.matched]) {
+			this.pending[this.matched++] = (char) c;
+			if (this.matched == CScriptFilterWriter.START.length) {
+				this.inScript = true;
+				this.matched = 0;
+			} // end if
+			return;
+		} // end if
+		if (this.matched > 0) {
+			this.out.write(this.pending, 0, this.matched);
+			this.matched = 0;
+		} // end if
+		if (lc == '<') {
+			this.pending[this.matched++] = (char) c;
+		} // end if
+		else {
+			this.out.write(c);
+		} // end else
+	} // end write()
+
+	/**
+	 * Write a portion of a string
+	 * 
+	 * @param str
+	 *            the string to write
+	 * @param off
+	 *            offset from which to start writing
+	 * @param len
+	 *            number of chars to write
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void write(final String str, final int off, final int len)
+			throws IOException {
+		for (int i = off; i < off + len; i++) {
+			this.write(str.charAt(i));
+		} // end for
+	} // end write()
+} // end CScriptFilterWriter
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.cl.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer;
+import org.apache.log4j.Logger;
+import org.xhtmlrenderer.css.parser.CSSErrorHandler;
+import org.xhtmlrenderer.css.parser.CSSParser;
+import org.xhtmlrenderer.css.sheet.Stylesheet;
+import org.xhtmlrenderer.css.sheet.StylesheetInfo;
+
+/**
+ * Process wide cache of the parsed linked stylesheets, keyed by normalized
+ * url. The cache is disabled unless CSS_CACHE_SIZE is set. The least
+ * recently used stylesheets are evicted when the cache grows over
+ * CSS_CACHE_SIZE, a stylesheet older than CSS_CACHE_TTL is revalidated
+ * against the Last-Modified date of its url. The stylesheet is parsed once
+ * by the renderer css parser and handed to the renderer as is.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CStyleSheetCache {
+	/**
+	 * A cached stylesheet.
+	 */
+	private static final class CEntry {
+		/** Last-Modified date of the url, 0 if unknown */
+		private final long lastModified;
+
+		/** size of the stylesheet source in bytes */
+		private final int size;
+
+		/** the parsed renderer stylesheet */
+		private final Stylesheet stylesheet;
+
+		/** last time the entry was loaded or revalidated */
+		private long validated;
+
+		/**
+		 * Creates a new CEntry object.
+		 *
+		 * @param stylesheet
+		 *            the parsed stylesheet
+		 * @param size
+		 *            size of the source
+		 * @param lastModified
+		 *            Last-Modified date of the url
+		 */
+		private CEntry(final Stylesheet stylesheet, final int size,
+				final long lastModified) {
+			this.stylesheet = stylesheet;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.validated = System.currentTimeMillis();
+		} // end CEntry()
+	} // end CEntry
+
+	/** default maximum size : 0, the cache is disabled */
+	private static final long DEFAULT_MAX_SIZE = 0;
+
+	/** default time to live : 1 minute */
+	private static final long DEFAULT_TTL = 60000;
+
+	/** logger */
+	private static final Logger log = Logger.getLogger(CStyleSheetCache.class);
+
+	/** reports the renderer parse errors */
+	private static final CSSErrorHandler ERROR_HANDLER = new CSSErrorHandler() {
+		public void error(final String uri, final String message) {
+			CStyleSheetCache.log.warn("(" + uri + ") " + message);
+		} // end error()
+	};
+
+	/** cached entries, in access order */
+	private static final Map entries = new LinkedHashMap(16, 0.75f, true);
+
+	/** number of requests served from the cache */
+	private static long hits = 0;
+
+	/** number of requests which loaded the stylesheet */
+	private static long misses = 0;
+
+	/** total size of the cached entries */
+	private static long size = 0;
+
+	/**
+	 * Remove all the stylesheets from the cache
+	 */
+	public static void clear() {
+		synchronized (CStyleSheetCache.entries) {
+			CStyleSheetCache.entries.clear();
+			CStyleSheetCache.size = 0;
+		} // end synchronized
+	} // end clear()
+
+	/**
+	 * Return the number of requests served from the cache
+	 *
+	 * @return the number of hits
+	 */
+	public static long getHits() {
+		synchronized (CStyleSheetCache.entries) {
+			return CStyleSheetCache.hits;
+		} // end synchronized
+	} // end getHits()
+
+	/**
+	 * Return a long property
+	 *
+	 * @param properties
+	 *            converter properties
+	 * @param name
+	 *            property name
+	 * @param defaultValue
+	 *            value if the property is not set or invalid
+	 *
+	 * @return the value of the property
+	 */
+	private static long getLong(final Map properties, final String name,
+			final long defaultValue) {
+		final Object value = properties.get(name);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.toString().trim());
+			} // end try
+			catch (final NumberFormatException ignore) {
+			} // end catch
+		} // end if
+		return defaultValue;
+	} // end getLong()
+
+	/**
+	 * Return the number of requests which loaded the stylesheet
+	 *
+	 * @return the number of misses
+	 */
+	public static long getMisses() {
+		synchronized (CStyleSheetCache.entries) {
+			return CStyleSheetCache.misses;
+		} // end synchronized
+	} // end getMisses()
+
+	/**
+	 * Return the total size in bytes of the cached stylesheets
+	 *
+	 * @return the size of the cache
+	 */
+	public static long getSize() {
+		synchronized (CStyleSheetCache.entries) {
+			return CStyleSheetCache.size;
+		} // end synchronized
+	} // end getSize()
+
+	/**
+	 * Return the entry of the url, from the cache if possible
+	 *
+	 * @param url
+	 *            the stylesheet url
+	 * @param properties
+	 *            converter properties
+	 *
+	 * @return the entry
+	 *
+	 * @throws IOException
+	 *             if the stylesheet can't be read
+	 */
+	private static CEntry getEntry(final String url, final Map properties)
+			throws IOException {
+		final long maxSize = CStyleSheetCache.getLong(properties,
+				IHtmlToPdfTransformer.CSS_CACHE_SIZE,
+				CStyleSheetCache.DEFAULT_MAX_SIZE);
+		final long ttl = CStyleSheetCache.getLong(properties,
+				IHtmlToPdfTransformer.CSS_CACHE_TTL,
+				CStyleSheetCache.DEFAULT_TTL);
+		final String key = CStyleSheetCache.normalize(url);
+		CEntry entry = null;
+		synchronized (CStyleSheetCache.entries) {
+			entry = (CEntry) CStyleSheetCache.entries.get(key);
+			if ((entry != null)
+					&& ((ttl < 0) || (System.currentTimeMillis()
+							- entry.validated < ttl))) {
+				CStyleSheetCache.hits++;
+				return entry;
+			} // end if
+		} // end synchronized
+		final URLConnection connection = new URL(key).openConnection();
+		if ((entry != null) && (entry.lastModified != 0)) {
+			connection.setIfModifiedSince(entry.lastModified);
+		} // end if
+		final InputStream in = connection.getInputStream();
+		try {
+			if ((entry != null)
+					&& (entry.lastModified != 0)
+					&& (((connection instanceof HttpURLConnection) && (((HttpURLConnection) connection)
+							.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) || (connection
+							.getLastModified() == entry.lastModified))) {
+				// not modified
+				synchronized (CStyleSheetCache.entries) {
+					entry.validated = System.currentTimeMillis();
+					CStyleSheetCache.hits++;
+				} // end synchronized
+				return entry;
+			} // end if
+			final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+			int iNbByteRead = -1;
+			final byte bbuffer[] = new byte[16384];
+
+			while ((iNbByteRead = in.read(bbuffer)) != -1) {
+				bOut.write(bbuffer, 0, iNbByteRead);
+			} // end while
+			final String document = new String(bOut.toByteArray(), "utf-8");
+			final CSSParser parser = new CSSParser(
+					CStyleSheetCache.ERROR_HANDLER);
+			final CEntry loaded = new CEntry(parser.parseStylesheet(url,
+					StylesheetInfo.AUTHOR, new StringReader(document)), bOut
+					.size(), connection.getLastModified());
+			synchronized (CStyleSheetCache.entries) {
+				CStyleSheetCache.misses++;
+				final CEntry old = (CEntry) CStyleSheetCache.entries.remove(key);
+				if (old != null) {
+					CStyleSheetCache.size -= old.size;
+				} // end if
+				if (loaded.size <= maxSize) {
+					CStyleSheetCache.entries.put(key, loaded);
+					CStyleSheetCache.size += loaded.size;
+				} // end if
+				for (final Iterator it = CStyleSheetCache.entries.values()
+						.iterator(); it.hasNext()
+						&& (CStyleSheetCache.size > maxSize);) {
+					final CEntry eldest = (CEntry) it.next();
+					it.remove();
+					CStyleSheetCache.size -= eldest.size;
+				} // end for
+			} // end synchronized
+			return loaded;
+		} // end try
+		finally {
+			try {
+				in.close();
+			} // end try
+			catch (final IOException ignore) {
+			} // end catch
+		} // end finally
+	} // end getEntry()
+
+	/**
+	 * Return the renderer stylesheet of the url, from the cache if possible.
+	 * The stylesheet is read and parsed at most once while it stays in the
+	 * cache.
+	 *
+	 * @param url
+	 *            the stylesheet url
+	 * @param properties
+	 *            converter properties
+	 *
+	 * @return the renderer stylesheet
+	 *
+	 * @throws IOException
+	 *             if the stylesheet can't be read
+	 */
+	static Stylesheet getStyleSheet(final String url, final Map properties)
+			throws IOException {
+		return CStyleSheetCache.getEntry(url, properties).stylesheet;
+	} // end getStyleSheet()
+
+	/**
+	 * Normalize an url to be used as cache key : the scheme is lower cased,
+	 * the path normalized and the fragment removed.
+	 *
+	 * @param url
+	 *            the url
+	 *
+	 * @return the normalized url
+	 */
+	private static String normalize(final String url) {
+		try {
+			final URI uri = new URI(url).normalize();
+			if (uri.isOpaque() || (uri.getScheme() == null)) {
+				return url;
+			} // end if
+			final StringBuffer key = new StringBuffer();
+			key.append(uri.getScheme().toLowerCase());
+			key.append(':');
+			if (uri.getRawAuthority() != null) {
+				key.append("//");
+				key.append(uri.getRawAuthority());
+			} // end if
+			key.append(uri.getRawPath());
+			if (uri.getRawQuery() != null) {
+				key.append('?');
+				key.append(uri.getRawQuery());
+			} // end if
+			return key.toString();
+		} // end try
+		catch (final URISyntaxException e) {
+			return url;
+		} // end catch
+	} // end normalize()
+
+	/**
+	 * Creates a new CStyleSheetCache object.
+	 */
+	private CStyleSheetCache() {
+	} // end CStyleSheetCache()
+} // end CStyleSheetCache
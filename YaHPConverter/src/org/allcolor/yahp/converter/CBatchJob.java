@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.converter;
+
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CConvertException;
+
+/**
+ * A document to convert in a batch, see
+ * CYaHPConverter.convertToPdf(Iterator, int). Once converted the job holds
+ * the outcome of its conversion.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public class CBatchJob {
+	/** the html document as a string, null if the document is read from url */
+	private final String content;
+
+	/** the cause of the failure, null if the conversion succeeded */
+	private CConvertException error = null;
+
+	/** header-footer list */
+	private final List hf;
+
+	/** outputstream to render into */
+	private final OutputStream out;
+
+	/** properties map */
+	private final Map properties;
+
+	/** PDF page size */
+	private final IHtmlToPdfTransformer.PageSize size;
+
+	/** conversion time in milliseconds, -1 until the job is done */
+	private long time = -1;
+
+	/** url to the document, null if the document is given as a string */
+	private final URL url;
+
+	/** base url of the document given as a string */
+	private final String urlForBase;
+
+	/**
+	 * Creates a new CBatchJob object converting the document pointed by url.
+	 *
+	 * @param url
+	 *            Url to the document
+	 * @param size
+	 *            PDF Page size
+	 * @param hf
+	 *            header-footer list
+	 * @param out
+	 *            outputstream to render into
+	 * @param properties
+	 *            properties map, copied before the conversion
+	 */
+	public CBatchJob(final URL url, final IHtmlToPdfTransformer.PageSize size,
+			final List hf, final OutputStream out, final Map properties) {
+		this.url = url;
+		this.content = null;
+		this.urlForBase = null;
+		this.size = size;
+		this.hf = hf;
+		this.out = out;
+		this.properties = properties;
+	} // end CBatchJob()
+
+	/**
+	 * Creates a new CBatchJob object converting the document in content.
+	 *
+	 * @param content
+	 *            the html document as a string
+	 * @param size
+	 *            PDF Page size
+	 * @param hf
+	 *            header-footer list
+	 * @param urlForBase
+	 *            base url of the document, mandatory, must end with a '/'
+	 * @param out
+	 *            outputstream to render into
+	 * @param properties
+	 *            properties map, copied before the conversion
+	 */
+	public CBatchJob(final String content,
+			final IHtmlToPdfTransformer.PageSize size, final List hf,
+			final String urlForBase, final OutputStream out,
+			final Map properties) {
+		this.url = null;
+		this.content = content;
+		this.urlForBase = urlForBase;
+		this.size = size;
+		this.hf = hf;
+		this.out = out;
+		this.properties = properties;
+	} // end CBatchJob()
+
+	/**
+	 * Called on the converting thread when the job is done, does nothing by
+	 * default. Override it to close the outputstream or to hand over the
+	 * result. If it throws, a converted job is recorded as failed.
+	 */
+	protected void done() {
+	} // end done()
+
+	/**
+	 * Return the html document
+	 *
+	 * @return the html document, null if the document is read from url
+	 */
+	public final String getContent() {
+		return this.content;
+	} // end getContent()
+
+	/**
+	 * Return the cause of the failure
+	 *
+	 * @return the cause, null if the job is not done or succeeded
+	 */
+	public final synchronized CConvertException getError() {
+		return this.error;
+	} // end getError()
+
+	/**
+	 * Return the header-footer list
+	 *
+	 * @return the header-footer list
+	 */
+	public final List getHf() {
+		return this.hf;
+	} // end getHf()
+
+	/**
+	 * Return the outputstream to render into
+	 *
+	 * @return the outputstream
+	 */
+	public final OutputStream getOut() {
+		return this.out;
+	} // end getOut()
+
+	/**
+	 * Return the properties map
+	 *
+	 * @return the properties map
+	 */
+	public final Map getProperties() {
+		return this.properties;
+	} // end getProperties()
+
+	/**
+	 * Return the PDF page size
+	 *
+	 * @return the page size
+	 */
+	public final IHtmlToPdfTransformer.PageSize getSize() {
+		return this.size;
+	} // end getSize()
+
+	/**
+	 * Return the conversion time
+	 *
+	 * @return the time in milliseconds, -1 if the job is not done
+	 */
+	public final synchronized long getTime() {
+		return this.time;
+	} // end getTime()
+
+	/**
+	 * Return the url to the document
+	 *
+	 * @return the url, null if the document is given as a string
+	 */
+	public final URL getUrl() {
+		return this.url;
+	} // end getUrl()
+
+	/**
+	 * Return the base url of the document given as a string
+	 *
+	 * @return the base url
+	 */
+	public final String getUrlForBase() {
+		return this.urlForBase;
+	} // end getUrlForBase()
+
+	/**
+	 * Return true if the job is done and its conversion succeeded
+	 *
+	 * @return true if the document is converted
+	 */
+	public final synchronized boolean isConverted() {
+		return (this.time != -1) && (this.error == null);
+	} // end isConverted()
+
+	/**
+	 * Record the outcome of the conversion
+	 *
+	 * @param time
+	 *            conversion time in milliseconds
+	 * @param error
+	 *            the cause of the failure, null if the conversion succeeded
+	 */
+	final synchronized void setResult(final long time,
+			final CConvertException error) {
+		this.time = time;
+		this.error = error;
+	} // end setResult()
+} // end CBatchJob
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a batch of conversions, see
+ * CYaHPConverter.convertToPdf(Iterator, int). The outcome of each job is
+ * held by the job itself, the failed jobs are listed here. The elements of
+ * the iterator which are not CBatchJob are counted as failures.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public final class CBatchResult {
+	/** time in milliseconds from the start to the end of the batch */
+	private long elapsedTime = 0;
+
+	/** the failed jobs, in completion order */
+	private final List failedJobs = new ArrayList();
+
+	/** number of elements of the iterator which were not CBatchJob */
+	private int invalidJobs = 0;
+
+	/** exception thrown by the iterator, null if none */
+	private RuntimeException iteratorException = null;
+
+	/** number of jobs done */
+	private int jobs = 0;
+
+	/** sum of the conversion times of the jobs in milliseconds */
+	private long totalTime = 0;
+
+	/**
+	 * Creates a new CBatchResult object.
+	 */
+	CBatchResult() {
+	} // end CBatchResult()
+
+	/**
+	 * Record a finished job
+	 *
+	 * @param job
+	 *            the job
+	 */
+	synchronized void add(final CBatchJob job) {
+		this.jobs++;
+		this.totalTime += job.getTime();
+		if (job.getError() != null) {
+			this.failedJobs.add(job);
+		} // end if
+	} // end add()
+
+	/**
+	 * Record an element of the iterator which is not a CBatchJob
+	 */
+	synchronized void addInvalid() {
+		this.jobs++;
+		this.invalidJobs++;
+	} // end addInvalid()
+
+	/**
+	 * Return the time from the start to the end of the batch
+	 *
+	 * @return the time in milliseconds
+	 */
+	public synchronized long getElapsedTime() {
+		return this.elapsedTime;
+	} // end getElapsedTime()
+
+	/**
+	 * Return the failed jobs
+	 *
+	 * @return the failed jobs, in completion order
+	 */
+	public synchronized List getFailedJobs() {
+		return new ArrayList(this.failedJobs);
+	} // end getFailedJobs()
+
+	/**
+	 * Return the number of failed jobs, the elements which were not
+	 * CBatchJob included
+	 *
+	 * @return the number of failures
+	 */
+	public synchronized int getFailures() {
+		return this.failedJobs.size() + this.invalidJobs;
+	} // end getFailures()
+
+	/**
+	 * Return the number of elements of the iterator which were not
+	 * CBatchJob, they were skipped
+	 *
+	 * @return the number of invalid jobs
+	 */
+	public synchronized int getInvalidJobs() {
+		return this.invalidJobs;
+	} // end getInvalidJobs()
+
+	/**
+	 * Return the exception thrown by the iterator of the jobs, it stopped
+	 * the batch
+	 *
+	 * @return the exception, null if the iterator did not throw
+	 */
+	public synchronized RuntimeException getIteratorException() {
+		return this.iteratorException;
+	} // end getIteratorException()
+
+	/**
+	 * Return the number of jobs done, the elements which were not CBatchJob
+	 * included
+	 *
+	 * @return the number of jobs
+	 */
+	public synchronized int getJobs() {
+		return this.jobs;
+	} // end getJobs()
+
+	/**
+	 * Return the number of CBatchJob done per second, the elements which
+	 * were not CBatchJob are not counted
+	 *
+	 * @return the throughput of the batch
+	 */
+	public synchronized double getThroughput() {
+		if (this.elapsedTime <= 0) {
+			return 0;
+		} // end if
+		return ((this.jobs - this.invalidJobs) * 1000d) / this.elapsedTime;
+	} // end getThroughput()
+
+	/**
+	 * Return the sum of the conversion times of the jobs
+	 *
+	 * @return the time in milliseconds
+	 */
+	public synchronized long getTotalTime() {
+		return this.totalTime;
+	} // end getTotalTime()
+
+	/**
+	 * Set the time from the start to the end of the batch
+	 *
+	 * @param elapsedTime
+	 *            the time in milliseconds
+	 */
+	synchronized void setElapsedTime(final long elapsedTime) {
+		this.elapsedTime = elapsedTime;
+	} // end setElapsedTime()
+
+	/**
+	 * Set the exception thrown by the iterator of the jobs, the first one
+	 * is kept
+	 *
+	 * @param e
+	 *            the exception
+	 */
+	synchronized void setIteratorException(final RuntimeException e) {
+		if (this.iteratorException == null) {
+			this.iteratorException = e;
+		} // end if
+	} // end setIteratorException()
+} // end CBatchResult
@@ -21,11 +21,16 @@ package org.allcolor.yahp.converter;
 
 import java.beans.Introspector;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
@@ -39,6 +44,7 @@ import java.net.URLConnection;
 import java.net.URLStreamHandlerFactory;
 
 import java.security.AccessControlContext;
+import java.security.MessageDigest;
 import java.security.ProtectionDomain;
 
 import java.sql.Driver;
@@ -57,6 +63,12 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.logging.Level;
@@ -72,9 +84,108 @@ import javax.swing.UIManager;
  * @version 1.0
  */
 public final class CClassLoader extends URLClassLoader {
+	/**
+	 * The entries of a jar, listed before they are added to a loader.
+	 */
+	private static final class CJarListing {
+		/** the names of the entries */
+		private final List entries;
+
+		/** the yahpjarloader urls of the entries */
+		private final List urls;
+
+		/**
+		 * Creates a new CJarListing object.
+		 *
+		 * @param entries
+		 *            the names of the entries
+		 * @param urls
+		 *            the yahpjarloader urls of the entries
+		 */
+		private CJarListing(final List entries, final List urls) {
+			this.entries = entries;
+			this.urls = urls;
+		}
+	} // end CJarListing
+
+	/**
+	 * Ids of the loaders already searched for a name by the current thread.
+	 * A lookup visits a handful of loaders, a linear scan is enough.
+	 */
+	private static final class CPriorLoaders {
+		/** the ids */
+		private int[] ids = new int[8];
+
+		/** number of ids */
+		private int size = 0;
+
+		/**
+		 * Add the loader to the searched loaders
+		 *
+		 * @param loader
+		 *            the loader
+		 *
+		 * @return false if the loader was already searched
+		 */
+		private boolean add(final CClassLoader loader) {
+			if (this.contains(loader)) {
+				return false;
+			}
+			if (this.size == this.ids.length) {
+				final int[] tmp = new int[this.size * 2];
+				System.arraycopy(this.ids, 0, tmp, 0, this.size);
+				this.ids = tmp;
+			}
+			this.ids[this.size++] = loader.id;
+			return true;
+		}
+
+		/**
+		 * Check if the loader was already searched
+		 *
+		 * @param loader
+		 *            the loader, may be a foreign loader
+		 *
+		 * @return true if the loader was already searched
+		 */
+		private boolean contains(final ClassLoader loader) {
+			if (!(loader instanceof CClassLoader)) {
+				return false;
+			}
+			final int id = ((CClassLoader) loader).id;
+			for (int i = 0; i < this.size; i++) {
+				if (this.ids[i] == id) {
+					return true;
+				}
+			}
+			return false;
+		}
+	} // end CPriorLoaders
+
 	/** classloader namespace */
 	public static final String CCLASSLOADER_NAMESPACE = "org.allcolor::CClassLoader.loadClass::";
 
+	/** true while the thread holding indexLock indexes the jars */
+	private static boolean indexing = false;
+
+	/** guards the indexing of the jars */
+	private static final Object indexLock = new Object();
+
+	/** true until the jars of a lazy config are indexed */
+	private static volatile boolean indexPending = false;
+
+	/** time in milliseconds spent indexing the jars, -1 until done */
+	private static volatile long indexTime = -1;
+
+	/** config of a lazy init, indexed on the first lookup */
+	private static CClassLoaderConfig pendingConfig = null;
+
+	/** first line of a cached jar index */
+	private static final String JAR_INDEX_HEADER = "yahp-jar-index-1";
+
+	/** id of the next created loader */
+	private static int nextId = 0;
+
 	private static ThreadLocal contextLoader = new ThreadLocal();
 
 	/** DEBUG log level */
@@ -154,6 +265,392 @@ public final class CClassLoader extends URLClassLoader {
 		}
 	}
 	
+	/**
+	 * Return the time spent indexing the jars of the loaders, at init or on
+	 * the first lookup after a lazy init
+	 * 
+	 * @return the time in milliseconds, -1 if the jars are not indexed yet
+	 */
+	public static final long getIndexTime() {
+		return CClassLoader.indexTime;
+	} // end getIndexTime()
+
+	/**
+	 * Return the names of the entries of the given jar, the directories
+	 * excepted. With a cache directory the names are read from the index
+	 * cached for the checksum of the jar, the index is written on a miss.
+	 *
+	 * @param jarFile
+	 *            the jar
+	 * @param cacheDirectory
+	 *            directory of the cached jar indexes, null if none
+	 *
+	 * @return the names of the entries
+	 *
+	 * @throws IOException
+	 *             if the jar cannot be read
+	 */
+	private static final List getJarEntries(final URL jarFile,
+			final File cacheDirectory) throws IOException {
+		if (cacheDirectory == null) {
+			return CClassLoader.scanJarEntries(jarFile);
+		}
+		final File index = new File(cacheDirectory, CClassLoader
+				.getJarChecksum(jarFile)
+				+ ".idx");
+		if (index.isFile()) {
+			try {
+				return CClassLoader.readJarIndex(index);
+			} catch (final IOException e) {
+				if (CClassLoader.sl(CClassLoader.INFO)) {
+					CClassLoader.log("invalid jar index : " + index + " : "
+							+ e.getMessage(), CClassLoader.INFO);
+				}
+			}
+		}
+		final List entries = CClassLoader.scanJarEntries(jarFile);
+		try {
+			CClassLoader.writeJarIndex(index, entries);
+		} catch (final IOException e) {
+			if (CClassLoader.sl(CClassLoader.INFO)) {
+				CClassLoader.log("cannot write jar index : " + index + " : "
+						+ e.getMessage(), CClassLoader.INFO);
+			}
+		}
+		return entries;
+	} // end getJarEntries()
+
+	/**
+	 * Return the MD5 checksum of the given jar
+	 *
+	 * @param jarFile
+	 *            the jar
+	 *
+	 * @return the checksum as an hexadecimal string
+	 *
+	 * @throws IOException
+	 *             if the jar cannot be read
+	 */
+	private static final String getJarChecksum(final URL jarFile)
+			throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (final Exception e) {
+			throw new IOException(e.getMessage());
+		}
+		final InputStream in = jarFile.openStream();
+		try {
+			final byte buffer[] = new byte[8192];
+			int iNbByteRead = -1;
+			while ((iNbByteRead = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, iNbByteRead);
+			}
+		} finally {
+			in.close();
+		}
+		final byte hash[] = digest.digest();
+		final StringBuffer checksum = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; i++) {
+			checksum.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			checksum.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return checksum.toString();
+	} // end getJarChecksum()
+
+	/**
+	 * Return the loaders already searched for the given name by the current
+	 * thread
+	 *
+	 * @param context
+	 *            the thread context
+	 * @param name
+	 *            the searched class, resource or library
+	 *
+	 * @return the searched loaders
+	 */
+	private static final CPriorLoaders getPriorLoaders(
+			final CThreadContext context, final String name) {
+		Map priorMap = (Map) context
+				.get(CClassLoader.CCLASSLOADER_NAMESPACE);
+		if (priorMap == null) {
+			priorMap = new HashMap();
+			context.set(CClassLoader.CCLASSLOADER_NAMESPACE, priorMap);
+		}
+		CPriorLoaders lPriorLoader = (CPriorLoaders) priorMap.get(name);
+		if (lPriorLoader == null) {
+			lPriorLoader = new CPriorLoaders();
+			priorMap.put(name, lPriorLoader);
+		}
+		return lPriorLoader;
+	} // end getPriorLoaders()
+
+	/**
+	 * List the entries of the given jar
+	 * 
+	 * @param jarFile
+	 *            the jar
+	 * @param cacheDirectory
+	 *            directory of the cached jar indexes, null if none
+	 * 
+	 * @return the listing, null if the jar cannot be read
+	 */
+	private static final CJarListing listJar(final URL jarFile,
+			final File cacheDirectory) {
+		try {
+			if (!jarFile.getPath().endsWith(".jar")) {
+				return null;
+			}
+			if (CClassLoader.sl(CClassLoader.DEBUG)) {
+				CClassLoader.log("opening jar : " + jarFile.toExternalForm(),
+						CClassLoader.DEBUG);
+			}
+			final List entries = CClassLoader.getJarEntries(jarFile,
+					cacheDirectory);
+			final String jarUrl = "yahpjarloader://"
+					+ CBASE64Codec.encode(
+							jarFile.toExternalForm().getBytes("utf-8"))
+							.replaceAll("\n", "") + "/";
+			final List urls = new ArrayList(entries.size());
+
+			for (final Iterator it = entries.iterator(); it.hasNext();) {
+				urls.add(new URL(jarUrl + it.next()));
+			}
+			return new CJarListing(entries, urls);
+		} catch (final MalformedURLException mue) {
+			mue.printStackTrace();
+
+			if (CClassLoader.sl(CClassLoader.FATAL)) {
+				CClassLoader.log(mue.getMessage(), CClassLoader.FATAL);
+			}
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+
+			if (CClassLoader.sl(CClassLoader.FATAL)) {
+				CClassLoader.log(ioe.getMessage(), CClassLoader.FATAL);
+			}
+		} catch (final Exception e) {
+			e.printStackTrace();
+
+			if (CClassLoader.sl(CClassLoader.FATAL)) {
+				CClassLoader.log(e.getMessage(), CClassLoader.FATAL);
+			}
+		}
+		return null;
+	} // end listJar()
+
+	/**
+	 * List the entries of all the configured jars concurrently, one thread
+	 * per processor
+	 * 
+	 * @param config
+	 *            the loaders config object
+	 * 
+	 * @return the listings by jar url
+	 */
+	private static final Map listJars(final CClassLoaderConfig config) {
+		final List jars = new ArrayList();
+		for (final Iterator it = config.getFilesMap().values().iterator(); it
+				.hasNext();) {
+			for (final Iterator f = ((List) it.next()).iterator(); f
+					.hasNext();) {
+				final Object obj = f.next();
+				if ((obj instanceof URL)
+						&& obj.toString().endsWith(".jar")) {
+					jars.add(obj);
+				}
+			}
+		}
+		final Map listings = new HashMap();
+		final int threads = Math.min(jars.size(), Runtime.getRuntime()
+				.availableProcessors());
+		if (threads <= 1) {
+			for (final Iterator it = jars.iterator(); it.hasNext();) {
+				final URL jarFile = (URL) it.next();
+				listings.put(jarFile, CClassLoader.listJar(jarFile, config
+						.getCacheDirectory()));
+			}
+			return listings;
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				threads, new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, "YaHP jar indexer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			final Map futures = new HashMap();
+			for (final Iterator it = jars.iterator(); it.hasNext();) {
+				final URL jarFile = (URL) it.next();
+				futures.put(jarFile, executor.submit(new Callable() {
+					public Object call() {
+						return CClassLoader.listJar(jarFile, config
+								.getCacheDirectory());
+					}
+				}));
+			}
+			for (final Iterator it = futures.entrySet().iterator(); it
+					.hasNext();) {
+				final Map.Entry entry = (Map.Entry) it.next();
+				try {
+					listings.put(entry.getKey(), ((Future) entry.getValue())
+							.get());
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (final ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (final Iterator it = jars.iterator(); it.hasNext();) {
+			final URL jarFile = (URL) it.next();
+			if (!listings.containsKey(jarFile)) {
+				listings.put(jarFile, CClassLoader.listJar(jarFile, config
+						.getCacheDirectory()));
+			}
+		}
+		return listings;
+	} // end listJars()
+
+	/**
+	 * Read a cached jar index
+	 *
+	 * @param index
+	 *            the index file
+	 *
+	 * @return the names of the entries
+	 *
+	 * @throws IOException
+	 *             if the index cannot be read or is truncated
+	 */
+	private static final List readJarIndex(final File index)
+			throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(index), "utf-8"));
+		try {
+			if (!CClassLoader.JAR_INDEX_HEADER.equals(in.readLine())) {
+				throw new IOException("unknown format");
+			}
+			final int size = Integer.parseInt(in.readLine());
+			final List entries = new ArrayList(size);
+			String line = null;
+			while ((line = in.readLine()) != null) {
+				entries.add(line);
+			}
+			if (entries.size() != size) {
+				throw new IOException("truncated");
+			}
+			return entries;
+		} catch (final NumberFormatException e) {
+			throw new IOException("unknown format");
+		} finally {
+			in.close();
+		}
+	} // end readJarIndex()
+
+	/**
+	 * Read the names of the entries of the given jar, the directories
+	 * excepted
+	 *
+	 * @param jarFile
+	 *            the jar
+	 *
+	 * @return the names of the entries
+	 *
+	 * @throws IOException
+	 *             if the jar cannot be read
+	 */
+	private static final List scanJarEntries(final URL jarFile)
+			throws IOException {
+		final JarInputStream jarIn = new JarInputStream(jarFile.openStream());
+		try {
+			final List entries = new ArrayList();
+			JarEntry jarEntry = null;
+			while ((jarEntry = jarIn.getNextJarEntry()) != null) {
+				if (!jarEntry.isDirectory()) {
+					entries.add(jarEntry.getName());
+				}
+			}
+			return entries;
+		} finally {
+			jarIn.close();
+		}
+	} // end scanJarEntries()
+
+	/**
+	 * Write a jar index in the cache directory. The index is written in a
+	 * temporary file then renamed, a concurrent reader never sees a partial
+	 * index.
+	 *
+	 * @param index
+	 *            the index file
+	 * @param entries
+	 *            the names of the entries
+	 *
+	 * @throws IOException
+	 *             if the index cannot be written
+	 */
+	private static final void writeJarIndex(final File index,
+			final List entries) throws IOException {
+		final File directory = index.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		final File tmp = File.createTempFile("yahp", ".tmp", directory);
+		try {
+			final Writer out = new OutputStreamWriter(new FileOutputStream(
+					tmp), "utf-8");
+			try {
+				out.write(CClassLoader.JAR_INDEX_HEADER);
+				out.write('\n');
+				out.write(String.valueOf(entries.size()));
+				out.write('\n');
+				for (final Iterator it = entries.iterator(); it.hasNext();) {
+					out.write((String) it.next());
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(index) && !index.isFile()) {
+				throw new IOException("cannot rename " + tmp);
+			}
+		} finally {
+			tmp.delete();
+		}
+	} // end writeJarIndex()
+
+	/**
+	 * Return a new loader id
+	 *
+	 * @return a new loader id
+	 */
+	private static final synchronized int nextId() {
+		return CClassLoader.nextId++;
+	} // end nextId()
+
+	/**
+	 * Forget the loaders searched for the given name by the current thread
+	 *
+	 * @param context
+	 *            the thread context
+	 * @param name
+	 *            the searched class, resource or library
+	 */
+	private static final void resetPriorLoaders(final CThreadContext context,
+			final String name) {
+		final Map priorMap = (Map) context
+				.get(CClassLoader.CCLASSLOADER_NAMESPACE);
+		if (priorMap != null) {
+			priorMap.remove(name);
+		}
+	} // end resetPriorLoaders()
+
 	private static final void clearMap(Map map) {
 		for(Iterator it = map.entrySet().iterator();it.hasNext();) {
 			Map.Entry e = (Map.Entry)it.next();
@@ -625,12 +1122,41 @@ public final class CClassLoader extends URLClassLoader {
 			}
 		}
 		try{CThreadContext.destroy();}catch(Throwable ignore){}
+		synchronized (CClassLoader.indexLock) {
+			CClassLoader.pendingConfig = null;
+			CClassLoader.indexPending = false;
+		}
 		System.runFinalization();
 		System.gc();
 		Introspector.flushCaches();
+		// after the finalization, which may still read classes.
+		CClassLoader.closeJars();
 		System.out.println("Destroying YAHP ClassLoader Tree : done");
 	} // end destroy()
 
+	/**
+	 * Index the jars of a lazy init if it is not done yet, the other threads
+	 * wait for the indexing.
+	 */
+	private static final void ensureIndexed() {
+		if (!CClassLoader.indexPending) {
+			return;
+		}
+		synchronized (CClassLoader.indexLock) {
+			if (!CClassLoader.indexPending || CClassLoader.indexing) {
+				return;
+			}
+			CClassLoader.indexing = true;
+			try {
+				CClassLoader.indexFiles(CClassLoader.pendingConfig);
+			} finally {
+				CClassLoader.indexing = false;
+				CClassLoader.pendingConfig = null;
+				CClassLoader.indexPending = false;
+			}
+		}
+	} // end ensureIndexed()
+
 	/**
 	 * Return a list of classes and jar files
 	 * 
@@ -798,6 +1324,29 @@ public final class CClassLoader extends URLClassLoader {
 			loader.booResourceOnly = info.isResourceOnly();
 		}
 		// lookup classes/resources in filesystem
+		if (config.isLazy()) {
+			synchronized (CClassLoader.indexLock) {
+				CClassLoader.pendingConfig = config;
+				CClassLoader.indexPending = true;
+			}
+		} else {
+			CClassLoader.indexFiles(config);
+		}
+
+		// set init state
+		CClassLoader.setInit(CClassLoader.getRootLoader());
+	} // end init()
+
+	/**
+	 * Add the configured files to their loaders
+	 * 
+	 * @param config
+	 *            the loaders config object
+	 */
+	private static final void indexFiles(final CClassLoaderConfig config) {
+		final long start = System.currentTimeMillis();
+		final Map listings = config.isParallel() ? CClassLoader
+				.listJars(config) : null;
 		for (final Iterator it = config.getFilesMap().entrySet().iterator(); it
 				.hasNext();) {
 			final Map.Entry entry = (Map.Entry) it.next();
@@ -816,7 +1365,13 @@ public final class CClassLoader extends URLClassLoader {
 					}
 					if (name.endsWith(".jar")) {
 						loader.addResource(name, file);
-						loader.readDirectories(file);
+						if (listings != null) {
+							loader.addJarEntries(file, (CJarListing) listings
+									.get(file));
+						} else {
+							loader.readDirectories(file, config
+									.getCacheDirectory());
+						}
 					} else {
 						loader.addResource(name, file);
 						if (!loader.booResourceOnly && name.endsWith(".class")) {
@@ -852,9 +1407,37 @@ public final class CClassLoader extends URLClassLoader {
 			}
 		}
 
-		// set init state
-		CClassLoader.setInit(CClassLoader.getRootLoader());
-	} // end init()
+		CClassLoader.indexTime = System.currentTimeMillis() - start;
+	} // end indexFiles()
+
+	/**
+	 * Close the jars opened by the nested jar url handler. The handler class
+	 * is copied in the system classloader by installURLStreamHandlerFactory,
+	 * the copy used by the installed factory is reached by reflection.
+	 */
+	private static void closeJars() {
+		final List handlers = new ArrayList();
+		handlers.add(CJarLoaderURLStreamHandler.class);
+		try {
+			final Class c = Class.forName(
+					"org.allcolor.yahp.converter.CJarLoaderURLStreamHandler",
+					true, ClassLoader.getSystemClassLoader());
+			if (!handlers.contains(c)) {
+				handlers.add(c);
+			}
+		} catch (final Throwable ignore) {
+		}
+		for (int i = 0; i < handlers.size(); i++) {
+			try {
+				final Class c = (Class) handlers.get(i);
+				final Object handler = c.getMethod("getInstance",
+						new Class[0]).invoke(null, new Object[0]);
+				c.getMethod("closeJars", new Class[0]).invoke(handler,
+						new Object[0]);
+			} catch (final Throwable ignore) {
+			}
+		}
+	} // end closeJars()
 
 	/**
 	 * Install a custom URLStreamHandlerFactory which handle nested jar loading,
@@ -1201,6 +1784,9 @@ public final class CClassLoader extends URLClassLoader {
 	 */
 	private final Map dllMap = new HashMap();
 
+	/** id of this loader, used to detect lookup cycles */
+	private final int id = CClassLoader.nextId();
+
 	/** loader name */
 	private String name = null;
 
@@ -1290,6 +1876,7 @@ public final class CClassLoader extends URLClassLoader {
 	 *            url to class file
 	 */
 	public final void addClass(final String className, final URL urlToClass) {
+		CClassLoader.ensureIndexed();
 		if ((className == null) || (urlToClass == null)) {
 			return;
 		}
@@ -1309,6 +1896,7 @@ public final class CClassLoader extends URLClassLoader {
 	 */
 	public final void addResource(final String resouceName,
 			final URL urlToResource) {
+		CClassLoader.ensureIndexed();
 		if ((urlToResource == null) || (resouceName == null)) {
 			return;
 		}
@@ -1339,6 +1927,7 @@ public final class CClassLoader extends URLClassLoader {
 
 	protected final Class findClass(final String name)
 			throws ClassNotFoundException {
+		CClassLoader.ensureIndexed();
 		try {
 			if (name == null) {
 				return null;
@@ -1349,22 +1938,13 @@ public final class CClassLoader extends URLClassLoader {
 			}
 
 			final String searchClass = name.replace('.', '/') + ".class";
-			final CThreadContext context = CThreadContext.getInstance();
-			final String cpName = CClassLoader.CCLASSLOADER_NAMESPACE + name;
+			final CPriorLoaders lPriorLoader = CClassLoader.getPriorLoaders(
+					CThreadContext.getInstance(), name);
 
-			List lPriorLoader = (List) context.get(cpName);
-
-			if (lPriorLoader == null) {
-				lPriorLoader = new Vector();
-				context.set(cpName, lPriorLoader);
-			}
-
-			if (lPriorLoader.contains(this.toString())) {
+			if (!lPriorLoader.add(this)) {
 				return null;
 			}
 
-			lPriorLoader.add(this.toString());
-
 			if (CClassLoader.sl(CClassLoader.DEBUG)) {
 				CClassLoader.log("Searching " + name + " in " + this.getPath(),
 						CClassLoader.DEBUG);
@@ -1450,7 +2030,7 @@ public final class CClassLoader extends URLClassLoader {
 				final Entry entry = (Entry) it.next();
 				final CClassLoader child = (CClassLoader) entry.getValue();
 
-				if (lPriorLoader.contains(child.toString())) {
+				if (lPriorLoader.contains(child)) {
 					continue;
 				}
 
@@ -1470,7 +2050,7 @@ public final class CClassLoader extends URLClassLoader {
 			// then follow to parents
 			if ((this != CClassLoader.getRootLoader())
 					&& !this.booDoNotForwardToParent) {
-				if (lPriorLoader.contains(this.getParent().toString())) {
+				if (lPriorLoader.contains(this.getParent())) {
 					return null;
 				} else {
 					if (this.getParent() instanceof CClassLoader) {
@@ -1516,6 +2096,7 @@ public final class CClassLoader extends URLClassLoader {
 	 */
 
 	protected String findLibrary(final String libname) {
+		CClassLoader.ensureIndexed();
 		if (!this.isInit()) {
 			if (CClassLoader.sl(CClassLoader.DEBUG)) {
 				CClassLoader
@@ -1528,21 +2109,14 @@ public final class CClassLoader extends URLClassLoader {
 		}
 		final String system = CSystem.getName() + "/" + libname;
 		final CThreadContext context = CThreadContext.getInstance();
-		final String cpName = CClassLoader.CCLASSLOADER_NAMESPACE + system;
 		try {
-			List lPriorLoader = (List) context.get(cpName);
-
-			if (lPriorLoader == null) {
-				lPriorLoader = new Vector();
-				context.set(cpName, lPriorLoader);
-			}
+			final CPriorLoaders lPriorLoader = CClassLoader.getPriorLoaders(
+					context, system);
 
-			if (lPriorLoader.contains(this.toString())) {
+			if (!lPriorLoader.add(this)) {
 				return null;
 			}
 
-			lPriorLoader.add(this.toString());
-
 			if (!this.booAlone) {
 				CClassLoader loader = null;
 
@@ -1563,7 +2137,7 @@ public final class CClassLoader extends URLClassLoader {
 
 				if (loader != null) {
 					final String c = loader.findLibrary(libname);
-					context.set(cpName, null);
+					CClassLoader.resetPriorLoaders(context, system);
 					return c;
 				}
 			}
@@ -1584,7 +2158,7 @@ public final class CClassLoader extends URLClassLoader {
 				path = nfile.getAbsolutePath();
 			}
 			if (path != null) {
-				context.set(cpName, null);
+				CClassLoader.resetPriorLoaders(context, system);
 				return path;
 			}
 
@@ -1596,7 +2170,7 @@ public final class CClassLoader extends URLClassLoader {
 				final Entry entry = (Entry) it.next();
 				final CClassLoader child = (CClassLoader) entry.getValue();
 
-				if (lPriorLoader.contains(child.toString())) {
+				if (lPriorLoader.contains(child)) {
 					continue;
 				}
 
@@ -1616,7 +2190,7 @@ public final class CClassLoader extends URLClassLoader {
 			// then follow to parents
 			if ((this != CClassLoader.getRootLoader())
 					&& !this.booDoNotForwardToParent) {
-				if (lPriorLoader.contains(this.getParent().toString())) {
+				if (lPriorLoader.contains(this.getParent())) {
 					return null;
 				} else {
 					if (this.getParent() instanceof CClassLoader) {
@@ -1629,7 +2203,7 @@ public final class CClassLoader extends URLClassLoader {
 				}
 			} else {
 				final String c = super.findLibrary(libname);
-				context.set(cpName, null);
+				CClassLoader.resetPriorLoaders(context, system);
 				return c;
 			}
 		} catch (final IOException e) {
@@ -1644,6 +2218,7 @@ public final class CClassLoader extends URLClassLoader {
 	 */
 
 	public final URL findResource(final String fname) {
+		CClassLoader.ensureIndexed();
 		if (!this.isInit()) {
 			if (CClassLoader.sl(CClassLoader.DEBUG)) {
 				CClassLoader.log("Not initialized, forward to old loader "
@@ -1666,20 +2241,13 @@ public final class CClassLoader extends URLClassLoader {
 		}
 
 		final CThreadContext context = CThreadContext.getInstance();
-		final String cpName = CClassLoader.CCLASSLOADER_NAMESPACE + name;
-		List lPriorLoader = (List) context.get(cpName);
-
-		if (lPriorLoader == null) {
-			lPriorLoader = new Vector();
-			context.set(cpName, lPriorLoader);
-		}
+		final CPriorLoaders lPriorLoader = CClassLoader.getPriorLoaders(
+				context, name);
 
-		if (lPriorLoader.contains(this.toString())) {
+		if (!lPriorLoader.add(this)) {
 			return null;
 		}
 
-		lPriorLoader.add(this.toString());
-
 		if (CClassLoader.sl(CClassLoader.DEBUG)) {
 			CClassLoader.log("Searching " + name + " in " + this.getPath(),
 					CClassLoader.DEBUG);
@@ -1711,7 +2279,7 @@ public final class CClassLoader extends URLClassLoader {
 			}
 
 			if (urlToResource != null) {
-				context.set(cpName, null);
+				CClassLoader.resetPriorLoaders(context, name);
 
 				return urlToResource;
 			}
@@ -1732,7 +2300,7 @@ public final class CClassLoader extends URLClassLoader {
 						CClassLoader.DEBUG);
 			}
 
-			context.set(cpName, null);
+			CClassLoader.resetPriorLoaders(context, name);
 
 			return urlToResource;
 		}
@@ -1745,7 +2313,7 @@ public final class CClassLoader extends URLClassLoader {
 			final Entry entry = (Entry) it.next();
 			final CClassLoader child = (CClassLoader) entry.getValue();
 
-			if (lPriorLoader.contains(child.toString())) {
+			if (lPriorLoader.contains(child)) {
 				continue;
 			}
 
@@ -1765,7 +2333,7 @@ public final class CClassLoader extends URLClassLoader {
 		// then follow to parents
 		if ((this != CClassLoader.getRootLoader())
 				&& !this.booDoNotForwardToParent) {
-			if (lPriorLoader.contains(this.getParent().toString())) {
+			if (lPriorLoader.contains(this.getParent())) {
 				return null;
 			} else {
 				if (this.getParent() == null) {
@@ -1777,7 +2345,7 @@ public final class CClassLoader extends URLClassLoader {
 		} else {
 			urlToResource = CClassLoader.getRootLoader().getParent()
 					.getResource(name);
-			context.set(cpName, null);
+			CClassLoader.resetPriorLoaders(context, name);
 
 			return urlToResource;
 		}
@@ -1791,6 +2359,7 @@ public final class CClassLoader extends URLClassLoader {
 
 	public final Enumeration findResources(final String name)
 			throws IOException {
+		CClassLoader.ensureIndexed();
 		final CClassLoader loader = CClassLoader.getRootLoader();
 		final List URLList = new ArrayList();
 
@@ -1843,6 +2412,7 @@ public final class CClassLoader extends URLClassLoader {
 	 * @return a copy of the known classes
 	 */
 	public final Map getClassesMap() {
+		CClassLoader.ensureIndexed();
 		return Collections.unmodifiableMap(this.classesMap);
 	} // end getClassesMap()
 
@@ -1974,6 +2544,7 @@ public final class CClassLoader extends URLClassLoader {
 	 * @return a copy of the known resources
 	 */
 	public final Map getResourcesMap() {
+		CClassLoader.ensureIndexed();
 		return Collections.unmodifiableMap(this.resourcesMap);
 	} // end getResourcesMap()
 
@@ -2063,7 +2634,7 @@ public final class CClassLoader extends URLClassLoader {
 
 			return c;
 		} finally {
-			context.set(CClassLoader.CCLASSLOADER_NAMESPACE + name, null);
+			CClassLoader.resetPriorLoaders(context, name);
 			try {
 
 			} catch (final Exception ignore) {
@@ -2094,139 +2665,113 @@ public final class CClassLoader extends URLClassLoader {
 	} // end nGetLoaderPath()
 
 	/**
-	 * analyse the content of the given jar file
+	 * add the listed entries of the given jar file
 	 * 
 	 * @param jarFile
-	 *            the jar to analise
+	 *            the jar
+	 * @param listing
+	 *            the entries of the jar, null if the jar cannot be read
 	 */
-	private final void readDirectories(final URL jarFile) {
-		JarInputStream jarIn = null;
+	private final void addJarEntries(final URL jarFile,
+			final CJarListing listing) {
+		if (listing == null) {
+			return;
+		}
+		final Iterator u = listing.urls.iterator();
+
+		for (final Iterator it = listing.entries.iterator(); it.hasNext();) {
+			final String entryName = (String) it.next();
+			final URL url = (URL) u.next();
 
-		try {
-			if (!jarFile.getPath().endsWith(".jar")) {
-				return;
-			}
 			if (CClassLoader.sl(CClassLoader.DEBUG)) {
-				CClassLoader.log("opening jar : " + jarFile.toExternalForm(),
+				CClassLoader.log("found entry : " + url.toString(),
 						CClassLoader.DEBUG);
 			}
-			jarIn = new JarInputStream(jarFile.openStream());
-			JarEntry jarEntry = null;
 
-			while ((jarEntry = jarIn.getNextJarEntry()) != null) {
-				if (jarEntry.isDirectory()) {
-					continue;
-				}
-
-				final URL url = new URL("yahpjarloader://"
-						+ CBASE64Codec.encode(
-								jarFile.toExternalForm().getBytes("utf-8"))
-								.replaceAll("\n", "") + "/"
-						+ jarEntry.getName());
-
-				if (CClassLoader.sl(CClassLoader.DEBUG)) {
-					CClassLoader.log("found entry : " + url.toString(),
-							CClassLoader.DEBUG);
+			if (entryName.endsWith(".class")) {
+				if (!this.classesMap.containsKey(entryName)) {
+					if (!this.booResourceOnly) {
+						this.classesMap.put(entryName, url);
+					}
 				}
 
-				if (jarEntry.getName().endsWith(".class")) {
-					if (!this.classesMap.containsKey(jarEntry.getName())) {
-						if (!this.booResourceOnly) {
-							this.classesMap.put(jarEntry.getName(), url);
-						}
+				if (this.resourcesMap.containsKey(entryName)) {
+					final Object to = this.resourcesMap.get(entryName);
+					if (to instanceof URL) {
+						final URL uo = (URL) to;
+						final List l = new ArrayList();
+						l.add(uo);
+						l.add(url);
+						this.resourcesMap.put(entryName, l);
+					} else if (to instanceof List) {
+						final List uo = (List) to;
+						uo.add(url);
+						this.resourcesMap.put(entryName, uo);
 					}
-
-					if (this.resourcesMap.containsKey(jarEntry.getName())) {
-						final Object to = this.resourcesMap.get(jarEntry
-								.getName());
-						if (to instanceof URL) {
-							final URL uo = (URL) to;
-							final List l = new ArrayList();
-							l.add(uo);
-							l.add(url);
-							this.resourcesMap.put(jarEntry.getName(), l);
-						} else if (to instanceof List) {
-							final List uo = (List) to;
-							uo.add(url);
-							this.resourcesMap.put(jarEntry.getName(), uo);
-						}
-					} else {
-						this.resourcesMap.put(jarEntry.getName(), url);
-					}
-				} else if (jarEntry.getName().startsWith("native/")) {
-					String system = jarEntry.getName().substring(7);
-					system = system.substring(0, system.indexOf('/'));
-					if (!this.dllMap.containsKey(system)) {
-						this.dllMap.put(system, url);
-					}
-					if (this.resourcesMap.containsKey(jarEntry.getName())) {
-						final Object to = this.resourcesMap.get(jarEntry
-								.getName());
-						if (to instanceof URL) {
-							final URL uo = (URL) to;
-							final List l = new ArrayList();
-							l.add(uo);
-							l.add(url);
-							this.resourcesMap.put(jarEntry.getName(), l);
-						} else if (to instanceof List) {
-							final List uo = (List) to;
-							uo.add(url);
-							this.resourcesMap.put(jarEntry.getName(), uo);
-						}
-					} else {
-						this.resourcesMap.put(jarEntry.getName(), url);
+				} else {
+					this.resourcesMap.put(entryName, url);
+				}
+			} else if (entryName.startsWith("native/")) {
+				String system = entryName.substring(7);
+				system = system.substring(0, system.indexOf('/'));
+				if (!this.dllMap.containsKey(system)) {
+					this.dllMap.put(system, url);
+				}
+				if (this.resourcesMap.containsKey(entryName)) {
+					final Object to = this.resourcesMap.get(entryName);
+					if (to instanceof URL) {
+						final URL uo = (URL) to;
+						final List l = new ArrayList();
+						l.add(uo);
+						l.add(url);
+						this.resourcesMap.put(entryName, l);
+					} else if (to instanceof List) {
+						final List uo = (List) to;
+						uo.add(url);
+						this.resourcesMap.put(entryName, uo);
 					}
 				} else {
-					if (this.resourcesMap.containsKey(jarEntry.getName())) {
-						final Object to = this.resourcesMap.get(jarEntry
-								.getName());
-						if (to instanceof URL) {
-							final URL uo = (URL) to;
-							final List l = new ArrayList();
-							l.add(uo);
-							l.add(url);
-							this.resourcesMap.put(jarEntry.getName(), l);
-						} else if (to instanceof List) {
-							final List uo = (List) to;
-							uo.add(url);
-							this.resourcesMap.put(jarEntry.getName(), uo);
-						}
-					} else {
-						this.resourcesMap.put(jarEntry.getName(), url);
+					this.resourcesMap.put(entryName, url);
+				}
+			} else {
+				if (this.resourcesMap.containsKey(entryName)) {
+					final Object to = this.resourcesMap.get(entryName);
+					if (to instanceof URL) {
+						final URL uo = (URL) to;
+						final List l = new ArrayList();
+						l.add(uo);
+						l.add(url);
+						this.resourcesMap.put(entryName, l);
+					} else if (to instanceof List) {
+						final List uo = (List) to;
+						uo.add(url);
+						this.resourcesMap.put(entryName, uo);
 					}
+				} else {
+					this.resourcesMap.put(entryName, url);
 				}
 			}
+		}
 
-			if (CClassLoader.sl(CClassLoader.DEBUG)) {
-				CClassLoader.log("opening jar : "
-						+ jarFile.getFile().toString() + " done.",
-						CClassLoader.DEBUG);
-			}
-		} catch (final MalformedURLException mue) {
-			mue.printStackTrace();
-
-			if (CClassLoader.sl(CClassLoader.FATAL)) {
-				CClassLoader.log(mue.getMessage(), CClassLoader.FATAL);
-			}
-		} catch (final IOException ioe) {
-			ioe.printStackTrace();
-
-			if (CClassLoader.sl(CClassLoader.FATAL)) {
-				CClassLoader.log(ioe.getMessage(), CClassLoader.FATAL);
-			}
-		} catch (final Exception e) {
-			e.printStackTrace();
-
-			if (CClassLoader.sl(CClassLoader.FATAL)) {
-				CClassLoader.log(e.getMessage(), CClassLoader.FATAL);
-			}
-		} finally {
-			try {
-				jarIn.close();
-				jarIn = null;
-			} catch (final Exception e) {
-			}
+		if (CClassLoader.sl(CClassLoader.DEBUG)) {
+			CClassLoader.log("opening jar : "
+					+ jarFile.getFile().toString() + " done.",
+					CClassLoader.DEBUG);
 		}
+	} // end addJarEntries()
+
+	/**
+	 * analyse the content of the given jar file
+	 * 
+	 * @param jarFile
+	 *            the jar to analise
+	 * @param cacheDirectory
+	 *            directory of the cached jar indexes, null if none
+	 */
+	private final void readDirectories(final URL jarFile,
+			final File cacheDirectory) {
+		this.addJarEntries(jarFile, CClassLoader.listJar(jarFile,
+				cacheDirectory));
 	} // end readDirectories()
 
 	/**
@@ -2243,6 +2788,7 @@ public final class CClassLoader extends URLClassLoader {
 	 *            a loader config object
 	 */
 	public final void reload(final CClassLoaderConfig config) {
+		CClassLoader.ensureIndexed();
 		if (this == CClassLoader.getRootLoader()) {
 			return;
 		}
@@ -2270,7 +2816,7 @@ public final class CClassLoader extends URLClassLoader {
 
 		for (final Iterator f = list.iterator(); f.hasNext();) {
 			final URL file = (URL) f.next();
-			newLoader.readDirectories(file);
+			newLoader.readDirectories(file, config.getCacheDirectory());
 		}
 
 		final Iterator it = this.childrenMap.keySet().iterator();
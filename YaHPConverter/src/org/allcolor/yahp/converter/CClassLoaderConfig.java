@@ -20,6 +20,7 @@
 
 package org.allcolor.yahp.converter;
 
+import java.io.File;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -34,12 +35,21 @@ import java.util.Map;
  * @version 0.94
  */
 public final class CClassLoaderConfig {
+    /** directory of the cached jar indexes, null if none */
+    private File cacheDirectory = null;
+
     /** file -- loader */
     private Map filesMap = new HashMap();
 
+    /** index the jars on the first lookup instead of at init ? */
+    private boolean lazy = false;
+
     /** info -- loader */
     private Map loadersInfoMap = new HashMap();
 
+    /** index the jars concurrently ? */
+    private boolean parallel = false;
+
     /**
      * add a file to the given loader
      *
@@ -79,6 +89,15 @@ public final class CClassLoaderConfig {
         );
     }
 
+    /**
+     * return the directory of the cached jar indexes
+     *
+     * @return the directory, null if the jars are not cached
+     */
+    public final File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
     /**
      * return the file -- loader map
      *
@@ -97,6 +116,54 @@ public final class CClassLoaderConfig {
         return loadersInfoMap;
     }
 
+    /**
+     * return true if the jars are indexed on the first lookup
+     *
+     * @return true if the init is lazy
+     */
+    public final boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * return true if the jars are indexed concurrently
+     *
+     * @return true if the jars are indexed concurrently
+     */
+    public final boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * set the directory where the index of each jar is cached, keyed by
+     * the checksum of the jar. A loader reads a cached index instead of
+     * scanning the jar.
+     *
+     * @param cacheDirectory the directory, null to not cache the jars
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * index the jars on the first class or resource lookup instead of at
+     * init, the first lookup waits for the indexing
+     *
+     * @param lazy true for a lazy init
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * index the jars concurrently, one thread per processor
+     *
+     * @param parallel true to index the jars concurrently
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     /**
      * represent info configuration for a loader
      *
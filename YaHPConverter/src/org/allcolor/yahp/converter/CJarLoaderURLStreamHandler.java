@@ -1,16 +1,24 @@
 package org.allcolor.yahp.converter;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class CJarLoaderURLStreamHandler extends URLStreamHandler {
 	/**
@@ -69,6 +77,12 @@ public class CJarLoaderURLStreamHandler extends URLStreamHandler {
 		return CJarLoaderURLStreamHandler.handler;
 	}
 
+	/** opened jars, by encoded jar url */
+	private final Map jars = new HashMap();
+
+	/** temporary copies of the jars which are not local files */
+	private final List copies = new ArrayList();
+
 	/** preload byte class map */
 	private Map preload = new Hashtable();
 
@@ -148,6 +162,84 @@ public class CJarLoaderURLStreamHandler extends URLStreamHandler {
 		} // end finally
 	} // end loadByteArray()
 	
+	/**
+	 * Close the opened jars and delete their temporary copies, a jar is
+	 * opened again on its next access.
+	 */
+	public synchronized void closeJars() {
+		for (Iterator it = this.jars.values().iterator(); it.hasNext();) {
+			try {
+				((ZipFile) it.next()).close();
+			} // end try
+			catch (final IOException ignore) {
+			} // end catch
+		} // end for
+		this.jars.clear();
+		for (Iterator it = this.copies.iterator(); it.hasNext();) {
+			((File) it.next()).delete();
+		} // end for
+		this.copies.clear();
+	} // end closeJars()
+
+	/**
+	 * Return the jar with the given encoded url. The jar is opened once, its
+	 * central directory gives direct access to each entry. A jar which is not
+	 * a local file is copied once in a temporary file.
+	 * 
+	 * @param host
+	 *            the base64 encoded url of the jar
+	 * 
+	 * @return the opened jar
+	 * 
+	 * @throws IOException
+	 *             if the jar cannot be read
+	 */
+	private synchronized ZipFile getJar(final String host) throws IOException {
+		ZipFile jar = (ZipFile) this.jars.get(host);
+
+		if (jar != null) {
+			return jar;
+		} // end if
+		URL file = new URL(new String(CBASE64Codec.decode(host), "utf-8"));
+
+		if ("file".equals(file.getProtocol())) {
+			try {
+				jar = new ZipFile(new File(new URI(file.toExternalForm())));
+			} // end try
+			catch (final Exception ignore) {
+			} // end catch
+		} // end if
+		if (jar == null) {
+			File tmp = File.createTempFile("yahp", ".jar");
+			tmp.deleteOnExit();
+			this.copies.add(tmp);
+			InputStream in = file.openStream();
+
+			try {
+				OutputStream out = new FileOutputStream(tmp);
+
+				try {
+					byte buffer[] = new byte[8192];
+					int iNbByteRead = -1;
+
+					while ((iNbByteRead = in.read(buffer)) != -1) {
+						out.write(buffer, 0, iNbByteRead);
+					} // end while
+				} // end try
+				finally {
+					out.close();
+				} // end finally
+			} // end try
+			finally {
+				in.close();
+			} // end finally
+			jar = new ZipFile(tmp);
+		} // end if
+		this.jars.put(host, jar);
+
+		return jar;
+	} // end getJar()
+
 	protected URLConnection openConnection(URL u) throws IOException {
 		String up = u.toExternalForm();
 		String path = u.getPath();
@@ -170,33 +262,21 @@ public class CJarLoaderURLStreamHandler extends URLStreamHandler {
 				return new CByteArrayUrlConnection(u, array);
 			} // end else
 		} // end if
-		URL file = new URL(
-				new String(CBASE64Codec.decode(u.getHost()), "utf-8"));
-		JarInputStream in = new JarInputStream(file.openStream());
-		JarEntry entry = null;
-
-		while ((entry = in.getNextJarEntry()) != null) {
-			if (entry.getName().equals(path)) {
-				break;
-			} // end if
-			else {
-				URL newU = new URL("yahpjarloader://" + u.getHost() + "/"
-						+ entry.getName());
-				this.addClassPreload(newU.toExternalForm(), loadByteArray(in));
-			} // end else if
-		} // end while
+		ZipFile jar = this.getJar(u.getHost());
+		ZipEntry entry = jar.getEntry(path);
 
 		if (entry == null) {
-			in.close();
 			throw new IOException("Resource not found ! : " + path + " - "
-					+ file.toExternalForm());
+					+ new String(CBASE64Codec.decode(u.getHost()), "utf-8"));
 		} // end if
-		else {
-			byte array[] = loadByteArray(in);
-			in.close();
+		InputStream in = jar.getInputStream(entry);
 
-			return new CByteArrayUrlConnection(u, array);
-		} // end else
+		try {
+			return new CByteArrayUrlConnection(u, loadByteArray(in));
+		} // end try
+		finally {
+			in.close();
+		} // end finally
 	}
 
 }
@@ -20,16 +20,18 @@
 
 package org.allcolor.yahp.converter;
 
-import java.lang.ref.WeakReference;
-
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is a simple mutex (Mutual Exclusion) class, which permits to synchronize
  * Thread access to some parts of the code. Example usage : CMutex m = new
  * CMutex(); private void mymethod() { m.acquire(); try { do something... }
- * finally { m.release(); } }
+ * finally { m.release(); } } The mutex is reentrant and counts its
+ * acquisitions and the time spent waiting for it.
  * 
  * @author Quentin Anciaux
  * @version 0.94
@@ -124,18 +126,37 @@ public final class CMutex {
 	}
 
 	/**
-	 * number of time the owner has acquired this mutex
+	 * The lock of a mutex, exposes its owner.
 	 */
-	private int acquire = 0;
+	private static final class CLock extends ReentrantLock {
+		/** serialVersionUID */
+		private static final long serialVersionUID = 2740231553342960163L;
+
+		/**
+		 * return the name of the owner of the lock
+		 * 
+		 * @return the name of the owner or "nobody"
+		 */
+		private String getOwnerName() {
+			final Thread owner = this.getOwner();
+			return (owner != null) ? owner.getName() : "nobody";
+		}
+	}
+
+	/** number of acquisitions, reentrant ones included */
+	private final AtomicLong acquisitions = new AtomicLong();
 
 	/** id of the mutex, used for sorting */
 	private int id = -1;
 
 	/** used to implement the locking mechanism */
-	private final Object LOCK = new Object();
+	private final CLock LOCK = new CLock();
+
+	/** total time in nanoseconds spent waiting for the mutex */
+	private final AtomicLong waitTime = new AtomicLong();
 
-	/** owner of the mutex */
-	private WeakReference owner = null;
+	/** number of acquisitions which had to wait for the mutex */
+	private final AtomicLong waits = new AtomicLong();
 
 	/**
 	 * Creates a new CMutex object.
@@ -147,23 +168,16 @@ public final class CMutex {
 	}
 
 	/**
-	 * Acquires this mutex
+	 * Acquires this mutex, an interrupt does not stop the wait but is kept
+	 * on the thread.
 	 */
 	public final void acquire() {
-		boolean cont = true;
-
-		while (cont) {
-			try {
-				cont = false;
-				this.acquire(-1);
-			} catch (RuntimeException te) {
-				cont = true;
-			}
-		}
+		this.acquire(-1);
 	}
 
 	/**
-	 * Acquires this mutex
+	 * Acquires this mutex, an interrupt does not stop the wait but is kept
+	 * on the thread.
 	 * 
 	 * @param timeout
 	 *            maximum time to wait for acquiring
@@ -172,49 +186,79 @@ public final class CMutex {
 	 *             if timeout is reached and no acquire was possible.
 	 */
 	public final void acquire(long timeout) throws RuntimeException {
-		synchronized (this.LOCK) {
-			long start = System.currentTimeMillis();
-
-			while (this.owner != null) {
-				if (this.owner.get() == Thread.currentThread()) {
-					this.acquire++;
-
-					return;
-				}
-
-				try {
-					if (timeout == -1) {
-						this.LOCK.wait();
-					} else {
-						this.LOCK.wait(timeout);
+		if (this.LOCK.tryLock()) {
+			this.acquisitions.incrementAndGet();
+			return;
+		}
+		final long start = System.nanoTime();
+		try {
+			if (timeout == -1) {
+				this.LOCK.lock();
+			} else {
+				final long deadline = start + (timeout * 1000000L);
+				boolean interrupted = false;
+				boolean locked = false;
+				while (!locked) {
+					try {
+						locked = this.LOCK.tryLock(deadline - System.nanoTime(),
+								TimeUnit.NANOSECONDS);
+						if (!locked) {
+							break;
+						}
+					} catch (InterruptedException e) {
+						interrupted = true;
 					}
-				} catch (InterruptedException e) {
-					//
 				}
-
-				long end = System.currentTimeMillis();
-
-				if ((this.owner != null) && (timeout != -1)
-						&& ((end - start) >= timeout)) {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				if (!locked) {
 					throw new RuntimeException("TimeoutException");
 				}
 			}
-
-			this.owner = new WeakReference(Thread.currentThread());
-			this.acquire++;
+			this.acquisitions.incrementAndGet();
+		} finally {
+			this.waits.incrementAndGet();
+			this.waitTime.addAndGet(System.nanoTime() - start);
 		}
 	}
 
+	/**
+	 * return the number of acquisitions of this mutex, reentrant ones
+	 * included
+	 * 
+	 * @return the number of acquisitions
+	 */
+	public final long getAcquisitions() {
+		return this.acquisitions.get();
+	}
+
+	/**
+	 * return the total time spent waiting for this mutex
+	 * 
+	 * @return the time in milliseconds
+	 */
+	public final long getTotalWaitTime() {
+		return this.waitTime.get() / 1000000L;
+	}
+
+	/**
+	 * return the number of acquisitions which had to wait for this mutex,
+	 * timed out ones included
+	 * 
+	 * @return the number of waits
+	 */
+	public final long getWaits() {
+		return this.waits.get();
+	}
+
 	/**
 	 * return true if Thread.currentThread is the owner of the mutex.
 	 * 
 	 * @return true if Thread.currentThread is the owner of the mutex.
 	 */
 	public final boolean isOwner() {
-		synchronized (this.LOCK) {
-			return ((this.owner != null) && (this.owner.get() == Thread
-					.currentThread()));
-		}
+		return this.LOCK.isHeldByCurrentThread();
 	}
 
 	/**
@@ -224,30 +268,12 @@ public final class CMutex {
 	 *             If currentThread is not the owner.
 	 */
 	public final void release() {
-		synchronized (this.LOCK) {
-			if ((this.owner != null)
-					&& (this.owner.get() == Thread.currentThread())) {
-				this.acquire--;
-
-				if (this.acquire == 0) {
-					this.owner = null;
-					this.LOCK.notify();
-				}
-
-				return;
-			}
-
-			if ((this.owner != null) && (this.owner.get() == null)) {
-				this.owner = null;
-				this.acquire = 0;
-				this.LOCK.notify();
-			}
-
+		if (!this.LOCK.isHeldByCurrentThread()) {
 			throw new IllegalMonitorStateException(Thread.currentThread()
 					.getName()
 					+ " is not the owner of the lock. "
-					+ ((this.owner != null) ? ((Thread) this.owner.get())
-							.getName() : "nobody") + " is the owner.");
+					+ this.LOCK.getOwnerName() + " is the owner.");
 		}
+		this.LOCK.unlock();
 	}
 }
\ No newline at end of file
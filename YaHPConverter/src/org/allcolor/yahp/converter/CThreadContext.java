@@ -20,25 +20,39 @@
 
 package org.allcolor.yahp.converter;
 
-import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
- * This class is a context bound to a thread
+ * This class is a context bound to a thread. The context is only reached
+ * from its own thread, it needs no locking and is released with its
+ * thread.
  * 
  * @author Quentin Anciaux
  * @version 0.94
  */
 public final class CThreadContext {
 	/** A thread context is thread bound */
-	private static final Map contextLocal = new HashMap();
+	private static final ThreadLocal contextLocal = new ThreadLocal();
+
+	/** incremented by destroy(), older contexts are discarded */
+	private static volatile int generation = 0;
+
+	/** generation of this context */
+	private final int contextGeneration;
 
 	/** Contains attributes set in this context */
 	private final Map valueMap = new HashMap();
 
-	/** mutex for thread safety */
-	private final CMutex mutex = new CMutex();
+	/**
+	 * Creates a new CThreadContext object.
+	 * 
+	 * @param contextGeneration
+	 *            generation of the context
+	 */
+	private CThreadContext(final int contextGeneration) {
+		this.contextGeneration = contextGeneration;
+	}
 
 	/**
 	 * Return a thread context
@@ -46,21 +60,24 @@ public final class CThreadContext {
 	 * @return a thread context
 	 */
 	public static final CThreadContext getInstance() {
-		SoftReference ref = (SoftReference)CThreadContext.contextLocal
-				.get(Thread.currentThread());
-		CThreadContext context = null;
-		if ((ref == null) || (ref.get() == null)) {
-			context = new CThreadContext();
-			ref = new SoftReference(context);
-			CThreadContext.contextLocal.put(Thread.currentThread(), ref);
-		} else {
-			context = (CThreadContext)ref.get();
+		final int current = CThreadContext.generation;
+		CThreadContext context = (CThreadContext) CThreadContext.contextLocal
+				.get();
+		if ((context == null) || (context.contextGeneration != current)) {
+			context = new CThreadContext(current);
+			CThreadContext.contextLocal.set(context);
 		}
 		return context;
 	}
 
+	/**
+	 * Discard the contexts of all the threads, each thread gets a new
+	 * context on its next getInstance().
+	 */
 	public static void destroy() {
-		CThreadContext.contextLocal.clear();
+		synchronized (CThreadContext.contextLocal) {
+			CThreadContext.generation++;
+		}
 	}
 
 	/**
@@ -72,16 +89,7 @@ public final class CThreadContext {
 	 * @return the value with the given key from this context
 	 */
 	public final Object get(String key) {
-		try {
-			this.mutex.acquire();
-
-			return this.valueMap.get(key);
-		} finally {
-			try {
-				this.mutex.release();
-			} catch (Exception ignore) {
-			}
-		}
+		return this.valueMap.get(key);
 	}
 
 	/**
@@ -93,18 +101,10 @@ public final class CThreadContext {
 	 *            the value to set
 	 */
 	public final void set(String key, Object value) {
-		try {
-			this.mutex.acquire();
-			if (value == null) {
-				this.valueMap.remove(key);
-			} else {
-				this.valueMap.put(key, value);
-			}
-		} finally {
-			try {
-				this.mutex.release();
-			} catch (Exception ignore) {
-			}
+		if (value == null) {
+			this.valueMap.remove(key);
+		} else {
+			this.valueMap.put(key, value);
 		}
 	}
 }
@@ -28,8 +28,21 @@ import java.net.URLClassLoader;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CConvertException;
 //import org.apache.log4j.PropertyConfigurator;
@@ -41,6 +54,143 @@ import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CConvertException;
  * @version 0.94
  */
 public final class CYaHPConverter {
+	/**
+	 * A conversion run by the converter threads.
+	 */
+	private static final class CConvertJob extends FutureTask {
+		/** notified when the conversion ends, may be null */
+		private final IConvertCallback callback;
+
+		/** the converter, logs the callback errors */
+		private final CYaHPConverter converter;
+
+		/** outputstream to render into */
+		private final OutputStream out;
+
+		/** true if the conversion was rejected, the callback is not notified */
+		private volatile boolean rejected = false;
+
+		/** true once the callback was notified */
+		private boolean reported = false;
+
+		/** true if the conversion timed out */
+		private volatile boolean timedOut = false;
+
+		/** cancels the conversion when it times out, may be null */
+		private TimerTask timeout = null;
+
+		/**
+		 * Creates a new CConvertJob object.
+		 *
+		 * @param converter the converter
+		 * @param conversion the conversion
+		 * @param out outputstream to render into
+		 * @param callback notified when the conversion ends, may be null
+		 */
+		private CConvertJob(
+			final CYaHPConverter   converter,
+			final Callable		   conversion,
+			final OutputStream	   out,
+			final IConvertCallback callback) {
+			super(conversion);
+			this.converter = converter;
+			this.out	   = out;
+			this.callback  = callback;
+		} // end CConvertJob()
+
+		/**
+		 * Stop the timeout, the callback is notified by run() once the
+		 * converter thread is done with the conversion and not on the
+		 * thread which cancelled it.
+		 */
+		protected void done() {
+			synchronized (this) {
+				if (timeout != null) {
+					timeout.cancel();
+				} // end if
+			} // end synchronized
+		} // end done()
+
+		/**
+		 * Run the conversion and notify the callback once it stopped, a
+		 * conversion cancelled before it started returns at once.
+		 */
+		public void run() {
+			try {
+				super.run();
+			} // end try
+			finally {
+				// the interrupt was meant for the conversion.
+				Thread.interrupted();
+				report();
+			} // end finally
+		} // end run()
+
+		/**
+		 * Notify the callback, once
+		 */
+		private void report() {
+			synchronized (this) {
+				if (reported) {
+					return;
+				} // end if
+				reported = true;
+			} // end synchronized
+			if ((callback == null) || rejected) {
+				return;
+			} // end if
+			CConvertException error = null;
+			if (isCancelled()) {
+				error = new CConvertException(timedOut
+						? "ERROR: The conversion timed out."
+						: "ERROR: The conversion was cancelled.", null);
+			} // end if
+			else {
+				try {
+					get();
+				} // end try
+				catch (final ExecutionException e) {
+					error = (e.getCause() instanceof CConvertException)
+						? (CConvertException) e.getCause()
+						: new CConvertException(e.getCause().getMessage(),
+							e.getCause());
+				} // end catch
+				catch (final InterruptedException e) {
+					error = new CConvertException(e.getMessage(), e);
+				} // end catch
+			} // end else
+			try {
+				if (error == null) {
+					callback.converted(out);
+				} // end if
+				else {
+					callback.failed(error);
+				} // end else
+			} // end try
+			catch (final Throwable e) {
+				converter.logError("The conversion callback failed.", e);
+			} // end catch
+		} // end report()
+
+		/**
+		 * Cancel the conversion after a delay
+		 *
+		 * @param timer the timer to use
+		 * @param delay delay in milliseconds
+		 */
+		private synchronized void setTimeout(
+			final Timer timer,
+			final long  delay) {
+			timeout = new TimerTask() {
+						public void run() {
+							timedOut = true;
+							CConvertJob.this.cancel(true);
+						} // end run()
+					};
+			timer.schedule(timeout, delay);
+		} // end setTimeout()
+	} // end CConvertJob
+
 	static {
 		try {
 			System.setProperty("file.encoding", "utf-8");
@@ -53,11 +203,38 @@ public final class CYaHPConverter {
 	/** Number of active instance */
 	private static int countInstance = 0;
 
+	/** time in milliseconds of the last initialization, -1 if none */
+	private static volatile long initTime = -1;
+
+	/** true until log4j is configured after a lazy initialization */
+	private static volatile boolean loggingPending = false;
+
 	/** an handle to a mutex object for thread safety */
 	private final CMutex mutex = new CMutex();
 
-	/** an handle to the known transformers */
-	private Map transformers = new HashMap();
+	/** guards the asynchronous conversion threads */
+	private final CMutex asyncMutex = new CMutex();
+
+	/**
+	 * an handle to the known transformers, read without locking, filled
+	 * under mutex
+	 */
+	private final Map transformers = new ConcurrentHashMap();
+
+	/** number of threads running the asynchronous conversions */
+	private final int asyncThreads;
+
+	/** number of asynchronous conversions which may wait for a thread */
+	private final int asyncQueueSize;
+
+	/** threads running the asynchronous conversions, created on first use */
+	private ThreadPoolExecutor executor = null;
+
+	/** cancels the asynchronous conversions which time out */
+	private Timer timer = null;
+
+	/** context classloader of the converting threads */
+	private ClassLoader contextLoader = null;
 
 	/**
 	 * Creates a new CYaHPConverter object.
@@ -72,11 +249,96 @@ public final class CYaHPConverter {
 	 * Creates a new CYaHPConverter object.
 	 */
 	public CYaHPConverter(boolean useClassLoader) {
+		this(useClassLoader, Runtime.getRuntime().availableProcessors(), 64);
+	} // end CYaHPConverter()
+
+	/**
+	 * Creates a new CYaHPConverter object.
+	 *
+	 * @param useClassLoader true to load the converter in its own
+	 * 		  classloader
+	 * @param cacheDirectory directory where the index of the embedded jars
+	 * 		  is cached across restarts, null to scan the jars at each start
+	 */
+	public CYaHPConverter(
+		boolean useClassLoader,
+		File    cacheDirectory) {
+		this(useClassLoader, Runtime.getRuntime().availableProcessors(), 64,
+			cacheDirectory);
+	} // end CYaHPConverter()
+
+	/**
+	 * Creates a new CYaHPConverter object.
+	 *
+	 * @param useClassLoader true to load the converter in its own
+	 * 		  classloader
+	 * @param asyncThreads number of threads running the asynchronous
+	 * 		  conversions
+	 * @param asyncQueueSize number of asynchronous conversions which may
+	 * 		  wait for a thread, further conversions are rejected
+	 */
+	public CYaHPConverter(
+		boolean useClassLoader,
+		int     asyncThreads,
+		int     asyncQueueSize) {
+		this(useClassLoader, asyncThreads, asyncQueueSize, null);
+	} // end CYaHPConverter()
+
+	/**
+	 * Creates a new CYaHPConverter object.
+	 *
+	 * @param useClassLoader true to load the converter in its own
+	 * 		  classloader
+	 * @param asyncThreads number of threads running the asynchronous
+	 * 		  conversions
+	 * @param asyncQueueSize number of asynchronous conversions which may
+	 * 		  wait for a thread, further conversions are rejected
+	 * @param cacheDirectory directory where the index of the embedded jars
+	 * 		  is cached across restarts, null to scan the jars at each start
+	 */
+	public CYaHPConverter(
+		boolean useClassLoader,
+		int     asyncThreads,
+		int     asyncQueueSize,
+		File    cacheDirectory) {
+		this(useClassLoader, asyncThreads, asyncQueueSize, cacheDirectory,
+			false, false);
+	} // end CYaHPConverter()
+
+	/**
+	 * Creates a new CYaHPConverter object.
+	 *
+	 * @param useClassLoader true to load the converter in its own
+	 * 		  classloader
+	 * @param asyncThreads number of threads running the asynchronous
+	 * 		  conversions
+	 * @param asyncQueueSize number of asynchronous conversions which may
+	 * 		  wait for a thread, further conversions are rejected
+	 * @param cacheDirectory directory where the index of the embedded jars
+	 * 		  is cached across restarts, null to scan the jars at each start
+	 * @param lazyInit true to index the embedded jars on the first
+	 * 		  conversion instead of in the constructor
+	 * @param parallelInit true to index the embedded jars concurrently
+	 */
+	public CYaHPConverter(
+		boolean useClassLoader,
+		int     asyncThreads,
+		int     asyncQueueSize,
+		File    cacheDirectory,
+		boolean lazyInit,
+		boolean parallelInit) {
 		this.useClassLoader = useClassLoader;
+		this.asyncThreads = Math.max(1, asyncThreads);
+		this.asyncQueueSize = Math.max(1, asyncQueueSize);
 		try {
 			countMutex.acquire();
 			countInstance++;
-			init(useClassLoader);
+			init(useClassLoader, cacheDirectory, lazyInit, parallelInit);
+			if (!lazyInit &&
+					(System.getProperty(IHtmlToPdfTransformer.RENDERER_POOL_MIN) != null)) {
+				// loading the renderer warms up its pools.
+				getTransformer(null);
+			} // end if
 		} // end try
 		finally {
 			try {
@@ -144,10 +406,198 @@ public final class CYaHPConverter {
 
 		try {
 			Thread.currentThread()
-					  .setContextClassLoader(new URLClassLoader(new URL[0],this.useClassLoader ? CClassLoader.getLoader(
-						"/main") : this.getClass().getClassLoader()));
+					  .setContextClassLoader(getContextClassLoader());
+			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+			convert(url, null, size, hf, null, out, properties);
+		} // end try
+		finally {
+			Thread.currentThread().setContextClassLoader(loader);
+			Thread.currentThread().setPriority(priority);
+		} // end finally
+	} // end convertToPdf()
+
+	/**
+	 * Convert the document in content in a PDF file. This method is
+	 * thread safe.
+	 *
+	 * @param content the html document as a string
+	 * @param size PDF Page size
+	 * @param hf header-footer list
+	 * @param furlForBase base url of the document, mandatory, must end
+	 * 		  with a '/'
+	 * @param out outputstream to render into
+	 * @param fproperties properties map
+	 *
+	 * @throws CConvertException if an unexpected error occurs
+	 */
+	public final void convertToPdf(
+		final String						 content,
+		final IHtmlToPdfTransformer.PageSize size,
+		final List							 hf,
+		final String						 furlForBase,
+		final OutputStream					 out,
+		final Map							 fproperties)
+	throws CConvertException {
+		Map    properties = (fproperties != null)
+			? fproperties
+			: new HashMap();
+		ClassLoader loader = Thread.currentThread()
+									   .getContextClassLoader();
+		int priority = Thread.currentThread().getPriority();
+		try {
+			Thread.currentThread()
+					  .setContextClassLoader(getContextClassLoader());
 			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+			convert(null, content, size, hf, furlForBase, out, properties);
+		} // end try
+		finally {
+			Thread.currentThread().setContextClassLoader(loader);
+			Thread.currentThread().setPriority(priority);
+		} // end finally
+	} // end convertToPdf()
+
+	/**
+	 * Convert a batch of documents in PDF files. The jobs are taken from
+	 * the iterator by threads worker threads, the calling thread being
+	 * one of them, and only when a worker is free : an iterator creating
+	 * the jobs and their outputstreams on demand keeps at most threads
+	 * documents in memory. The workers are set up once for the whole
+	 * batch, the properties of each job are copied before its
+	 * conversion. A failed job does not stop the batch, the workers stop
+	 * taking jobs when the calling thread is interrupted. A job whose
+	 * done() method throws is recorded as failed, an element of the
+	 * iterator which is not a CBatchJob is counted as a failure, see
+	 * CBatchResult.getInvalidJobs(). An exception thrown by the iterator
+	 * stops the batch, see CBatchResult.getIteratorException().
+	 *
+	 * @param jobs iterator over the CBatchJob to convert
+	 * @param threads number of worker threads
+	 *
+	 * @return the outcome of the batch
+	 */
+	public final CBatchResult convertToPdf(
+		final Iterator jobs,
+		final int	   threads) {
+		final CBatchResult result = new CBatchResult();
+		final Thread	   caller = Thread.currentThread();
+		final long		   start  = System.currentTimeMillis();
+		final Runnable	   worker =
+			new Runnable() {
+				public void run() {
+					ClassLoader loader = Thread.currentThread()
+												   .getContextClassLoader();
+					int priority = Thread.currentThread().getPriority();
+					try {
+						Thread.currentThread()
+								  .setContextClassLoader(getContextClassLoader());
+						Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+						CBatchJob job = null;
+						while ((job = nextJob(jobs, caller, result)) != null) {
+							convert(job, result);
+						} // end while
+					} // end try
+					finally {
+						Thread.currentThread().setContextClassLoader(loader);
+						Thread.currentThread().setPriority(priority);
+					} // end finally
+				} // end run()
+			};
+		final Thread workers[] = new Thread[Math.max(1, threads) - 1];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(worker, "YaHP batch converter #" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		} // end for
+		boolean interrupted = false;
+		try {
+			worker.run();
+		} // end try
+		finally {
+			for (int i = 0; i < workers.length; i++) {
+				while (workers[i].isAlive()) {
+					try {
+						workers[i].join();
+					} // end try
+					catch (final InterruptedException e) {
+						interrupted = true;
+					} // end catch
+				} // end while
+			} // end for
+		} // end finally
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		} // end if
+		result.setElapsedTime(System.currentTimeMillis() - start);
+		return result;
+	} // end convertToPdf()
+
+	/**
+	 * Convert a document of a batch and record its outcome
+	 *
+	 * @param job the job
+	 * @param result the outcome of the batch
+	 */
+	private void convert(
+		final CBatchJob	   job,
+		final CBatchResult result) {
+		final long		  start = System.currentTimeMillis();
+		CConvertException error = null;
+		try {
+			convert(job.getUrl(), job.getContent(), job.getSize(),
+				job.getHf(), job.getUrlForBase(), job.getOut(),
+				(job.getProperties() != null)
+				? new HashMap(job.getProperties())
+				: new HashMap());
+		} // end try
+		catch (final CConvertException e) {
+			error = e;
+		} // end catch
+		catch (final RuntimeException e) {
+			error = new CConvertException(e.getMessage(), e);
+		} // end catch
+		job.setResult(System.currentTimeMillis() - start, error);
+		try {
+			job.done();
+		} // end try
+		catch (final Throwable e) {
+			if (error == null) {
+				job.setResult(job.getTime(),
+					new CConvertException(
+						"ERROR: The job could not be completed: " +
+						e.getMessage(), e));
+			} // end if
+			else {
+				logError("The done() method of a failed job failed.", e);
+			} // end else
+		} // end catch
+		result.add(job);
+	} // end convert()
 
+	/**
+	 * Convert a document with the context classloader of the converter
+	 * already set.
+	 *
+	 * @param url Url to the document, null if the document is given in
+	 * 		  content
+	 * @param content the html document as a string
+	 * @param size PDF Page size
+	 * @param hf header-footer list
+	 * @param furlForBase base url of the document given in content
+	 * @param out outputstream to render into
+	 * @param properties properties map
+	 *
+	 * @throws CConvertException if an unexpected error occurs
+	 */
+	private void convert(
+		final URL							 url,
+		final String						 content,
+		final IHtmlToPdfTransformer.PageSize size,
+		final List							 hf,
+		final String						 furlForBase,
+		final OutputStream					 out,
+		final Map							 properties)
+	throws CConvertException {
+		if (url != null) {
 			String uri = url.toExternalForm();
 			if (uri.indexOf("://") != -1) {
 				String tmp = uri.substring(uri.indexOf("://")+3);
@@ -178,45 +628,16 @@ public final class CYaHPConverter {
 			catch (final Exception e) {
 				throw new CConvertException(e.getMessage(),e);
 			} // end catch
-		} // end try
-		finally {
-			Thread.currentThread().setContextClassLoader(loader);
-			Thread.currentThread().setPriority(priority);
-		} // end finally
-	} // end convertToPdf()
+			return;
+		} // end if
 
-	/**
-	 * Convert the document in content in a PDF file. This method is
-	 * thread safe.
-	 *
-	 * @param content the html document as a string
-	 * @param size PDF Page size
-	 * @param hf header-footer list
-	 * @param furlForBase base url of the document, mandatory, must end
-	 * 		  with a '/'
-	 * @param out outputstream to render into
-	 * @param fproperties properties map
-	 *
-	 * @throws CConvertException if an unexpected error occurs
-	 */
-	public final void convertToPdf(
-		final String						 content,
-		final IHtmlToPdfTransformer.PageSize size,
-		final List							 hf,
-		final String						 furlForBase,
-		final OutputStream					 out,
-		final Map							 fproperties)
-	throws CConvertException {
 		String urlForBase = furlForBase;
-		Map    properties = (fproperties != null)
-			? fproperties
-			: new HashMap();
 
 		if (urlForBase != null) {
 			try {
-				URL url = new URL(urlForBase);
+				URL base = new URL(urlForBase);
 
-				if (url == null) {
+				if (base == null) {
 					throw new CConvertException(
 						"urlForBase must be a valid URI.",null);
 				} // end if
@@ -233,33 +654,281 @@ public final class CYaHPConverter {
 			}
 		} // end if
 
-		ClassLoader loader = Thread.currentThread()
-									   .getContextClassLoader();
-		int priority = Thread.currentThread().getPriority();
 		try {
-			Thread.currentThread()
-					  .setContextClassLoader(new URLClassLoader(new URL[0],this.useClassLoader ? CClassLoader.getLoader(
-						"/main") : this.getClass().getClassLoader()));
-			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+			IHtmlToPdfTransformer transformer = getTransformer(properties);
+			transformer.transform(new ByteArrayInputStream(
+					content.getBytes("utf-8")), urlForBase, size, hf,
+				properties, out);
+		} // end try
+		catch (final CConvertException e) {
+			throw e;
+		}
+		catch (final Exception e) {
+			throw new CConvertException(e.getMessage(),e);
+		} // end catch
+	} // end convert()
+
+	/**
+	 * Return the context classloader of the converting threads, it is
+	 * created once and again only if the converter classloader changed.
+	 *
+	 * @return the classloader
+	 */
+	synchronized ClassLoader getContextClassLoader() {
+		ClassLoader parent = this.useClassLoader ? CClassLoader.getLoader(
+			"/main") : this.getClass().getClassLoader();
+		if ((contextLoader == null) ||
+				(contextLoader.getParent() != parent)) {
+			contextLoader = new URLClassLoader(new URL[0], parent);
+		} // end if
+		return contextLoader;
+	} // end getContextClassLoader()
 
+	/**
+	 * Return the next job of a batch
+	 *
+	 * @param jobs iterator over the jobs
+	 * @param caller thread which started the batch
+	 * @param result the outcome of the batch, counts the elements which
+	 * 		  are not CBatchJob
+	 *
+	 * @return the next job, null if there is none left or the batch was
+	 * 		   interrupted
+	 */
+	private static CBatchJob nextJob(
+		final Iterator	   jobs,
+		final Thread	   caller,
+		final CBatchResult result) {
+		synchronized (jobs) {
 			try {
-				IHtmlToPdfTransformer transformer = getTransformer(properties);
-				transformer.transform(new ByteArrayInputStream(
-						content.getBytes("utf-8")), urlForBase, size, hf,
-					properties, out);
+				while (!caller.isInterrupted() &&
+						(result.getIteratorException() == null) &&
+						jobs.hasNext()) {
+					final Object job = jobs.next();
+					if (job instanceof CBatchJob) {
+						return (CBatchJob) job;
+					} // end if
+					result.addInvalid();
+				} // end while
 			} // end try
-			catch (final CConvertException e) {
-				throw e;
-			}
-			catch (final Exception e) {
-				throw new CConvertException(e.getMessage(),e);
+			catch (final RuntimeException e) {
+				// the iterator is broken, the batch stops.
+				result.setIteratorException(e);
+			} // end catch
+			return null;
+		} // end synchronized
+	} // end nextJob()
+
+	/**
+	 * Convert the document pointed by url in a PDF file on a converter
+	 * thread. This method returns at once, the conversion can be waited
+	 * for and cancelled through the returned future. The content of out
+	 * is undefined if the conversion fails. A cancelled or timed out
+	 * conversion stops at its next interruption point, the callback is
+	 * notified once it stopped.
+	 *
+	 * @param url Url to the document
+	 * @param size PDF Page size
+	 * @param hf header-footer list
+	 * @param out outputstream to render into
+	 * @param fproperties properties map
+	 * @param callback notified when the conversion ends, may be null
+	 * @param timeout time in milliseconds after which the conversion is
+	 * 		  cancelled, counted from the submission, 0 for no timeout
+	 *
+	 * @return the future of the conversion
+	 *
+	 * @throws CConvertException if all the converter threads are busy and
+	 * 		   the queue is full.
+	 */
+	public final Future convertToPdfAsync(
+		final URL							 url,
+		final IHtmlToPdfTransformer.PageSize size,
+		final List							 hf,
+		final OutputStream					 out,
+		final Map							 fproperties,
+		final IConvertCallback				 callback,
+		final long							 timeout)
+	throws CConvertException {
+		return submit(new Callable() {
+					public Object call()
+						throws Exception {
+						convertToPdf(url, size, hf, out, fproperties);
+						return null;
+					} // end call()
+				}, out, callback, timeout);
+	} // end convertToPdfAsync()
+
+	/**
+	 * Convert the document in content in a PDF file on a converter thread.
+	 * This method returns at once, the conversion can be waited for and
+	 * cancelled through the returned future. The content of out is
+	 * undefined if the conversion fails. A cancelled or timed out
+	 * conversion stops at its next interruption point, the callback is
+	 * notified once it stopped.
+	 *
+	 * @param content the html document as a string
+	 * @param size PDF Page size
+	 * @param hf header-footer list
+	 * @param furlForBase base url of the document, mandatory, must end
+	 * 		  with a '/'
+	 * @param out outputstream to render into
+	 * @param fproperties properties map
+	 * @param callback notified when the conversion ends, may be null
+	 * @param timeout time in milliseconds after which the conversion is
+	 * 		  cancelled, counted from the submission, 0 for no timeout
+	 *
+	 * @return the future of the conversion
+	 *
+	 * @throws CConvertException if all the converter threads are busy and
+	 * 		   the queue is full.
+	 */
+	public final Future convertToPdfAsync(
+		final String						 content,
+		final IHtmlToPdfTransformer.PageSize size,
+		final List							 hf,
+		final String						 furlForBase,
+		final OutputStream					 out,
+		final Map							 fproperties,
+		final IConvertCallback				 callback,
+		final long							 timeout)
+	throws CConvertException {
+		return submit(new Callable() {
+					public Object call()
+						throws Exception {
+						convertToPdf(content, size, hf, furlForBase, out,
+							fproperties);
+						return null;
+					} // end call()
+				}, out, callback, timeout);
+	} // end convertToPdfAsync()
+
+	/**
+	 * Run a conversion on a converter thread
+	 *
+	 * @param conversion the conversion
+	 * @param out outputstream to render into
+	 * @param callback notified when the conversion ends, may be null
+	 * @param timeout time in milliseconds after which the conversion is
+	 * 		  cancelled, 0 for no timeout
+	 *
+	 * @return the future of the conversion
+	 *
+	 * @throws CConvertException if the conversion is rejected
+	 */
+	private Future submit(
+		final Callable		   conversion,
+		final OutputStream	   out,
+		final IConvertCallback callback,
+		final long			   timeout)
+	throws CConvertException {
+		final CConvertJob job = new CConvertJob(this, conversion, out,
+				callback);
+		List purged = null;
+		try {
+			asyncMutex.acquire();
+			if (executor == null) {
+				executor = new ThreadPoolExecutor(asyncThreads,
+						asyncThreads, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue(asyncQueueSize),
+						new ThreadFactory() {
+							private int count = 0;
+
+							public Thread newThread(final Runnable r) {
+								final Thread t = new Thread(r,
+										"YaHP converter #" + (++count));
+								t.setDaemon(true);
+								return t;
+							} // end newThread()
+						});
+				timer = new Timer(true);
+			} // end if
+			if (timeout > 0) {
+				job.setTimeout(timer, timeout);
+			} // end if
+			try {
+				executor.execute(job);
+			} // end try
+			catch (final RejectedExecutionException e) {
+				// the queue may be full of cancelled conversions.
+				purged = purge();
+				executor.execute(job);
 			} // end catch
 		} // end try
+		catch (final RejectedExecutionException e) {
+			job.rejected = true;
+			job.cancel(false);
+			throw new CConvertException(
+				"ERROR: Too many conversions are waiting.", e);
+		} // end catch
 		finally {
-			Thread.currentThread().setContextClassLoader(loader);
-			Thread.currentThread().setPriority(priority);
+			try {
+				asyncMutex.release();
+			} // end try
+			catch (final Exception ignore) {}
+			report(purged);
 		} // end finally
-	} // end convertToPdf()
+		return job;
+	} // end submit()
+
+	/**
+	 * Remove the cancelled conversions from the queue of the converter
+	 * threads, they would never be run.
+	 *
+	 * @return the removed conversions, their callbacks are to be notified
+	 * 		   once the mutex is released
+	 */
+	private List purge() {
+		final List purged = new ArrayList();
+		for (Iterator it = executor.getQueue().iterator(); it.hasNext();) {
+			final CConvertJob queued = (CConvertJob) it.next();
+			if (queued.isCancelled() && executor.remove(queued)) {
+				purged.add(queued);
+			} // end if
+		} // end for
+		return purged;
+	} // end purge()
+
+	/**
+	 * Notify the callbacks of conversions which will never be run
+	 *
+	 * @param jobs the conversions, may be null
+	 */
+	private static void report(final List jobs) {
+		if (jobs == null) {
+			return;
+		} // end if
+		for (int i = 0; i < jobs.size(); i++) {
+			((CConvertJob) jobs.get(i)).report();
+		} // end for
+	} // end report()
+
+	/**
+	 * Stop the threads running the asynchronous conversions, the running
+	 * conversions are interrupted and the waiting ones cancelled.
+	 */
+	public final void shutdown() {
+		List waiting = null;
+		try {
+			asyncMutex.acquire();
+			if (executor != null) {
+				waiting = executor.shutdownNow();
+				for (int i = 0; i < waiting.size(); i++) {
+					((Future) waiting.get(i)).cancel(false);
+				} // end for
+				timer.cancel();
+				executor = null;
+				timer = null;
+			} // end if
+		} // end try
+		finally {
+			try {
+				asyncMutex.release();
+			} // end try
+			catch (final Exception ignore) {}
+			report(waiting);
+		} // end finally
+	} // end shutdown()
 
 	/**
 	 * If instance count fall to 0, Delete the jar file from the temp
@@ -271,6 +940,7 @@ public final class CYaHPConverter {
 	protected final void finalize()
 		throws Throwable {
 		super.finalize();
+		shutdown();
 
 		try {
 			countMutex.acquire();
@@ -288,16 +958,253 @@ public final class CYaHPConverter {
 		} // end finally
 	} // end finalize()
 
+	/**
+	 * configure log4j with the log4j.properties of the classloader
+	 */
+	private static synchronized void configureLogging() {
+		loggingPending = false;
+		try {
+			URL url = CClassLoader.getRootLoader().getResource("log4j.properties");
+			if (url != null) {
+				ClassLoader cx = Thread.currentThread().getContextClassLoader();
+				try {
+					Thread.currentThread().setContextClassLoader(CClassLoader.getRootLoader());
+					Class pc = CClassLoader.getRootLoader().loadClass("org.apache.log4j.PropertyConfigurator");
+					Method configure = pc.getDeclaredMethod("configure", new Class[]{URL.class});
+					configure.invoke(null, new Object[]{url});
+				}
+				finally {
+					Thread.currentThread().setContextClassLoader(cx);
+				}
+			}
+		}
+		catch(Exception ignore){}
+	} // end configureLogging()
+
+	/**
+	 * Log an error with the log4j logger of the converter classloader, or
+	 * on the standard error if log4j can't be reached.
+	 *
+	 * @param message the message
+	 * @param e the error
+	 */
+	private void logError(
+		final String    message,
+		final Throwable e) {
+		try {
+			ClassLoader loader = this.useClassLoader ? CClassLoader.getRootLoader() : this.getClass().getClassLoader();
+			Class lc = loader.loadClass("org.apache.log4j.Logger");
+			Object logger = lc.getMethod("getLogger", new Class[]{String.class})
+							  .invoke(null, new Object[]{CYaHPConverter.class.getName()});
+			Method error = lc.getMethod("error", new Class[]{Object.class, Throwable.class});
+			error.invoke(logger, new Object[]{message, e});
+		} // end try
+		catch (final Exception ignore) {
+			System.err.println("SEVERE: " + message);
+			e.printStackTrace();
+		} // end catch
+	} // end logError()
+
+	/**
+	 * Return the time spent by the last initialization of the converter.
+	 * After a lazy initialization the embedded jars are indexed on the
+	 * first conversion, see CClassLoader.getIndexTime().
+	 *
+	 * @return the time in milliseconds, -1 if no converter was initialized
+	 */
+	public static long getInitTime() {
+		return initTime;
+	} // end getInitTime()
+
+	/**
+	 * Return a statistic of the renderer, read from a static getter of a
+	 * class of the converter classloader.
+	 *
+	 * @param className class holding the statistic
+	 * @param getter name of the getter
+	 *
+	 * @return the value, -1 if it can't be read
+	 */
+	private long getStatistic(final String className, final String getter) {
+		try {
+			ClassLoader loader = this.useClassLoader ? CClassLoader.getLoader("/main") : this.getClass().getClassLoader();
+			Method method = loader.loadClass(className).getMethod(getter, new Class[0]);
+			return ((Number) method.invoke(null, new Object[0])).longValue();
+		} // end try
+		catch (final Exception e) {
+			return -1;
+		} // end catch
+	} // end getStatistic()
+
+	/**
+	 * Return the number of linked stylesheets served from the stylesheet
+	 * cache, see IHtmlToPdfTransformer.CSS_CACHE_SIZE.
+	 *
+	 * @return the number of hits, -1 if it can't be read
+	 */
+	public long getStyleSheetCacheHits() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CStyleSheetCache", "getHits");
+	} // end getStyleSheetCacheHits()
+
+	/**
+	 * Return the number of linked stylesheets loaded and parsed because
+	 * they were not in the stylesheet cache.
+	 *
+	 * @return the number of misses, -1 if it can't be read
+	 */
+	public long getStyleSheetCacheMisses() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CStyleSheetCache", "getMisses");
+	} // end getStyleSheetCacheMisses()
+
+	/**
+	 * Return the total size in bytes of the stylesheets in the stylesheet
+	 * cache.
+	 *
+	 * @return the size, -1 if it can't be read
+	 */
+	public long getStyleSheetCacheSize() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CStyleSheetCache", "getSize");
+	} // end getStyleSheetCacheSize()
+
+	/**
+	 * Return the number of images served from the image cache, see
+	 * IHtmlToPdfTransformer.IMAGE_CACHE_SIZE.
+	 *
+	 * @return the number of hits, -1 if it can't be read
+	 */
+	public long getImageCacheHits() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CImageCache", "getHits");
+	} // end getImageCacheHits()
+
+	/**
+	 * Return the number of images decoded because they were not in the
+	 * image cache.
+	 *
+	 * @return the number of misses, -1 if it can't be read
+	 */
+	public long getImageCacheMisses() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CImageCache", "getMisses");
+	} // end getImageCacheMisses()
+
+	/**
+	 * Return the number of images evicted to keep the image cache under
+	 * its maximum size.
+	 *
+	 * @return the number of evictions, -1 if it can't be read
+	 */
+	public long getImageCacheEvictions() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CImageCache", "getEvictions");
+	} // end getImageCacheEvictions()
+
+	/**
+	 * Return the total size in bytes of the decoded images in the image
+	 * cache.
+	 *
+	 * @return the size, -1 if it can't be read
+	 */
+	public long getImageCacheSize() {
+		return getStatistic("org.allcolor.yahp.cl.converter.CImageCache", "getSize");
+	} // end getImageCacheSize()
+
+	/**
+	 * Return a statistic of the renderer pool of the default renderer, see
+	 * CObjectPool in the converter classloader.
+	 *
+	 * @param getter name of the getter of the pool
+	 *
+	 * @return the value, -1 if it can't be read
+	 */
+	private long getRendererPoolStatistic(final String getter) {
+		try {
+			ClassLoader loader = this.useClassLoader ? CClassLoader.getLoader("/main") : this.getClass().getClassLoader();
+			Object pool = loader.loadClass(IHtmlToPdfTransformer.DEFAULT_PDF_RENDERER)
+								.getMethod("getRendererPool", new Class[0])
+								.invoke(null, new Object[0]);
+			Method method = pool.getClass().getMethod(getter, new Class[0]);
+			return ((Number) method.invoke(pool, new Object[0])).longValue();
+		} // end try
+		catch (final Exception e) {
+			return -1;
+		} // end catch
+	} // end getRendererPoolStatistic()
+
+	/**
+	 * Return the number of renderers created and not discarded, idle or in
+	 * use, see IHtmlToPdfTransformer.RENDERER_POOL_MAX.
+	 *
+	 * @return the number of renderers, -1 if it can't be read
+	 */
+	public long getRendererPoolSize() {
+		return getRendererPoolStatistic("getSize");
+	} // end getRendererPoolSize()
+
+	/**
+	 * Return the number of idle pooled renderers.
+	 *
+	 * @return the number of idle renderers, -1 if it can't be read
+	 */
+	public long getRendererPoolIdle() {
+		return getRendererPoolStatistic("getIdle");
+	} // end getRendererPoolIdle()
+
+	/**
+	 * Return the number of renderers in use.
+	 *
+	 * @return the number of renderers in use, -1 if it can't be read
+	 */
+	public long getRendererPoolBorrowed() {
+		return getRendererPoolStatistic("getBorrowed");
+	} // end getRendererPoolBorrowed()
+
+	/**
+	 * Return the number of conversions which waited for a renderer.
+	 *
+	 * @return the number of waits, -1 if it can't be read
+	 */
+	public long getRendererPoolWaits() {
+		return getRendererPoolStatistic("getWaits");
+	} // end getRendererPoolWaits()
+
+	/**
+	 * Return the total time spent by the conversions waiting for a
+	 * renderer.
+	 *
+	 * @return the time in milliseconds, -1 if it can't be read
+	 */
+	public long getRendererPoolTotalWaitTime() {
+		return getRendererPoolStatistic("getTotalWaitTime");
+	} // end getRendererPoolTotalWaitTime()
+
+	/**
+	 * Return the longest time a conversion waited for a renderer.
+	 *
+	 * @return the time in milliseconds, -1 if it can't be read
+	 */
+	public long getRendererPoolMaxWaitTime() {
+		return getRendererPoolStatistic("getMaxWaitTime");
+	} // end getRendererPoolMaxWaitTime()
+
 	/**
 	 * initialize the classloader, and the transformer
+	 *
+	 * @param useClassLoader true to load the converter in its own
+	 * 		  classloader
+	 * @param cacheDirectory directory of the cached jar indexes, null if
+	 * 		  none
+	 * @param lazyInit true to index the jars on the first lookup
+	 * @param parallelInit true to index the jars concurrently
 	 */
-	private final void init(boolean useClassLoader) {
+	private final void init(
+		boolean useClassLoader,
+		File    cacheDirectory,
+		boolean lazyInit,
+		boolean parallelInit) {
 		final CYaHPConverter converter = this;
 		System.out.println("Initializing...");
 		long time = System.currentTimeMillis();
 		
 		if (!useClassLoader) {
-			System.out.println("init time: "+(System.currentTimeMillis()-time));
+			initTime = System.currentTimeMillis()-time;
 			return;
 		}
 
@@ -318,6 +1225,9 @@ public final class CYaHPConverter {
 
 		ClassLoader loader = this.getClass().getClassLoader();
 		CClassLoaderConfig config = new CClassLoaderConfig();
+		config.setCacheDirectory(cacheDirectory);
+		config.setLazy(lazyInit);
+		config.setParallel(parallelInit);
 		config.addLoaderInfo("/main",
 			new CClassLoaderConfig.CLoaderInfo(true, true, false, false));
 		config.addFile("/main", loader.getResource("itext-yahp.jar"));
@@ -331,27 +1241,19 @@ public final class CYaHPConverter {
 		config.addFile("/main", loader.getResource("core-renderer-yahp.jar"));
 		config.addFile("/main", loader.getResource("jaxen-yahp.jar"));
 		CClassLoader.init(config);
-		try {
-			URL url = CClassLoader.getRootLoader().getResource("log4j.properties");
-			if (url != null) {
-				ClassLoader cx = Thread.currentThread().getContextClassLoader();
-				try {
-					Thread.currentThread().setContextClassLoader(CClassLoader.getRootLoader());
-					Class pc = CClassLoader.getRootLoader().loadClass("org.apache.log4j.PropertyConfigurator");
-					Method configure = pc.getDeclaredMethod("configure", new Class[]{URL.class});
-					configure.invoke(null, new Object[]{url});
-				}
-				finally {
-					Thread.currentThread().setContextClassLoader(cx);
-				}
-			}
-		}
-		catch(Exception ignore){}
-		System.out.println("init time: "+(System.currentTimeMillis()-time));
+		if (lazyInit) {
+			// looking up log4j.properties would index the jars.
+			loggingPending = true;
+		} // end if
+		else {
+			configureLogging();
+		} // end else
+		initTime = System.currentTimeMillis()-time;
 	} // end init()
 
 	/**
-	 * Get a transformer.
+	 * Get a transformer. A known transformer is returned without locking,
+	 * the mutex is only taken to instantiate a transformer.
 	 *
 	 * @param properties The properties map.
 	 *
@@ -359,21 +1261,33 @@ public final class CYaHPConverter {
 	 * 		   the properties map.
 	 */
 	private IHtmlToPdfTransformer getTransformer(final Map properties) {
+		String rendererClassName = IHtmlToPdfTransformer.DEFAULT_PDF_RENDERER;
+
+		if ((properties != null) &&
+				properties.containsKey(
+					IHtmlToPdfTransformer.PDF_RENDERER_CLASS)) {
+			rendererClassName = (String) properties.get(IHtmlToPdfTransformer.PDF_RENDERER_CLASS);
+		} // end if
+
+		final IHtmlToPdfTransformer known = (rendererClassName != null)
+			? (IHtmlToPdfTransformer) transformers.get(rendererClassName)
+			: null;
+
+		if (known != null) {
+			return known;
+		} // end if
+
 		try {
 			mutex.acquire();
 			IHtmlToPdfTransformer transformer	    = null;
-			String				  rendererClassName = IHtmlToPdfTransformer.DEFAULT_PDF_RENDERER;
-	
-			if ((properties != null) &&
-					properties.containsKey(
-						IHtmlToPdfTransformer.PDF_RENDERER_CLASS)) {
-				rendererClassName = (String) properties.get(IHtmlToPdfTransformer.PDF_RENDERER_CLASS);
-			} // end if
 	
 			if (transformers.containsKey(rendererClassName)) {
 				transformer = (IHtmlToPdfTransformer) transformers.get(rendererClassName);
 			} // end if
 			else {
+				if (this.useClassLoader && loggingPending) {
+					configureLogging();
+				} // end if
 				ClassLoader bootStrap = this.useClassLoader ? CClassLoader.getLoader("/main") : this.getClass().getClassLoader();
 	
 				try {
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2007 by Quentin Anciaux
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *	@author Quentin Anciaux
+ */
+package org.allcolor.yahp.converter;
+
+import java.io.OutputStream;
+
+import org.allcolor.yahp.converter.IHtmlToPdfTransformer.CConvertException;
+
+/**
+ * Notified when an asynchronous conversion ends. Exactly one of the methods
+ * is called, on the converter thread once it is done with the conversion,
+ * even if the conversion was cancelled or timed out. A conversion which
+ * never ran, because it was dropped from the queue or the converter was
+ * shut down, is notified on the thread which dropped it.
+ *
+ * @author Quentin Anciaux
+ * @version 0.1
+ */
+public interface IConvertCallback {
+	/**
+	 * Called when the document is converted
+	 *
+	 * @param out
+	 *            outputstream the pdf was rendered into
+	 */
+	public void converted(final OutputStream out);
+
+	/**
+	 * Called when the conversion failed, was cancelled or timed out
+	 *
+	 * @param e
+	 *            the cause of the failure
+	 */
+	public void failed(final CConvertException e);
+} // end IConvertCallback
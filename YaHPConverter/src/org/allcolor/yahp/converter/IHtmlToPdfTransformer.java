@@ -768,6 +768,22 @@ public interface IHtmlToPdfTransformer {
 																		// 003.7
 																		// cm)
 
+	/**
+	 * Maximum total size in bytes of the linked stylesheets kept parsed in
+	 * the process wide stylesheet cache, the least recently used ones are
+	 * evicted. Defaults to 0, the cache is disabled unless this property is
+	 * set, 4194304 (4MB) is a reasonable size.
+	 */
+	public static final String CSS_CACHE_SIZE = "yahp.CSS_CACHE_SIZE";
+
+	/**
+	 * Time in milliseconds after which a cached stylesheet is checked
+	 * against the Last-Modified date of its url. Defaults to 60000 (1
+	 * minute), a negative value uses a cached stylesheet until it is
+	 * evicted.
+	 */
+	public static final String CSS_CACHE_TTL = "yahp.CSS_CACHE_TTL";
+
 	/** Default PDF renderer class, use flying sauce to render HTML. */
 	public static final String DEFAULT_PDF_RENDERER = IHtmlToPdfTransformer.FLYINGSAUCER_PDF_RENDERER;
 
@@ -777,6 +793,15 @@ public interface IHtmlToPdfTransformer {
 	/** Path to TTF font for embedding with FOP */
 	public static final String FOP_TTF_FONT_PATH = "yahp.FOP_TTF_FONT_PATH";
 
+	/**
+	 * Maximum total size in bytes of the decoded images kept in the process
+	 * wide image cache, the least recently used ones are evicted. The
+	 * images are keyed by url only and are not revalidated, so the cache
+	 * should only be enabled for images which do not change. Defaults to 0,
+	 * the cache is disabled unless this property is set.
+	 */
+	public static final String IMAGE_CACHE_SIZE = "yahp.IMAGE_CACHE_SIZE";
+
 	/**
 	 * The operation permitted when the document is opened with the user
 	 * password. USE_PDF_ENCRYPTION must be set to true for this property to
@@ -846,6 +871,13 @@ public interface IHtmlToPdfTransformer {
 	 */
 	public static final String PDF_ENCRYPTION_PASSWORD = "yahp.PDF_ENCRYPTION_PASSWORD";
 
+	/**
+	 * Maximum size in bytes of an intermediate pdf kept in memory while
+	 * converting, bigger ones are written to a temporary file. Defaults to
+	 * 4194304 (4MB), 0 always uses temporary files.
+	 */
+	public static final String PDF_MEMORY_THRESHOLD = "yahp.PDF_MEMORY_THRESHOLD";
+
 	/** Set this property to set the pdf producer metadata. */
 	public static final String PDF_PRODUCER = "yahp.PDF_PRODUCER";
 
@@ -870,6 +902,51 @@ public interface IHtmlToPdfTransformer {
 	/** Set this property to set the pdf title metadata. */
 	public static final String PDF_TITLE = "yahp.PDF_TITLE";
 
+	/**
+	 * Number of threads fetching the linked stylesheets, their imports and
+	 * the images of a document while it is prepared for rendering. Defaults
+	 * to 4, 0 disables the prefetch, the resources are then fetched one by
+	 * one by the renderer. The fetching threads are shared by the
+	 * conversions and bounded to the greater of 4 and twice the number of
+	 * processors.
+	 */
+	public static final String PREFETCH_THREADS = "yahp.PREFETCH_THREADS";
+
+	/**
+	 * Time in milliseconds after which an idle pooled renderer is released,
+	 * down to RENDERER_POOL_MIN renderers. Defaults to 60000 (1 minute).
+	 * The renderer pools are process wide: this is a system property, read
+	 * once when the renderer is loaded.
+	 */
+	public static final String RENDERER_POOL_IDLE_TIMEOUT = "yahp.RENDERER_POOL_IDLE_TIMEOUT";
+
+	/**
+	 * Maximum number of renderers, a conversion waits for a renderer when
+	 * all of them are in use. Defaults to twice the number of processors.
+	 * This is a system property, read once when the renderer is loaded.
+	 */
+	public static final String RENDERER_POOL_MAX = "yahp.RENDERER_POOL_MAX";
+
+	/**
+	 * Number of renderers created in the background when the converter is
+	 * created and kept even when idle. Defaults to 0. This is a system
+	 * property, read once when the renderer is loaded.
+	 */
+	public static final String RENDERER_POOL_MIN = "yahp.RENDERER_POOL_MIN";
+
+	/**
+	 * Number of threads used to lay out and render the page-break segments of
+	 * a document. Defaults to 1, the segments are then rendered one after
+	 * another on the calling thread.
+	 */
+	public static final String RENDERING_THREADS = "yahp.RENDERING_THREADS";
+
+	/**
+	 * Directory of the temporary files created while converting. Defaults to
+	 * the java.io.tmpdir directory.
+	 */
+	public static final String TEMP_DIRECTORY = "yahp.TEMP_DIRECTORY";
+
 	/** Set this property to true to allow encryption of the PDF */
 	public static final String USE_PDF_ENCRYPTION = "yahp.USE_PDF_ENCRYPTION";
 